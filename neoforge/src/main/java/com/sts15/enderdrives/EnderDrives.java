@@ -7,6 +7,8 @@ import com.sts15.enderdrives.client.ClientTapeCache;
 import com.sts15.enderdrives.commands.ModCommands;
 import com.sts15.enderdrives.config.serverConfig;
 import com.sts15.enderdrives.db.EnderDBManager;
+import com.sts15.enderdrives.db.EnderExecutors;
+import com.sts15.enderdrives.db.SerializedKeyCache;
 import com.sts15.enderdrives.db.TapeDBManager;
 import com.sts15.enderdrives.init.CreativeTabRegistry;
 import com.sts15.enderdrives.inventory.EnderDiskInventory;
@@ -19,7 +21,6 @@ import com.sts15.enderdrives.network.packet.SyncConfigPacket;
 import com.sts15.enderdrives.network.packet.SyncDisabledDrivesPacket;
 import net.minecraft.client.renderer.item.ItemProperties;
 import net.minecraft.resources.ResourceLocation;
-import net.minecraft.server.level.ServerLevel;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.item.Item;
 import net.neoforged.api.distmarker.Dist;
@@ -33,7 +34,9 @@ import net.neoforged.neoforge.client.event.RegisterColorHandlersEvent;
 import net.neoforged.neoforge.common.NeoForge;
 import net.neoforged.neoforge.event.RegisterCommandsEvent;
 import net.neoforged.neoforge.event.entity.player.PlayerEvent;
-import net.neoforged.neoforge.event.level.LevelEvent;
+import net.neoforged.neoforge.event.server.ServerStartingEvent;
+import net.neoforged.neoforge.event.server.ServerStoppingEvent;
+import net.neoforged.neoforge.event.tick.ServerTickEvent;
 import net.neoforged.bus.api.SubscribeEvent;
 import net.neoforged.neoforge.network.event.RegisterPayloadHandlersEvent;
 import java.util.Objects;
@@ -44,8 +47,6 @@ import static com.sts15.enderdrives.Constants.MOD_ID;
 @Mod(MOD_ID)
 public class EnderDrives {
 
-    private static boolean isDatabaseActive = false;
-
     public EnderDrives(IEventBus modEventBus, ModContainer modContainer) {
         serverConfig.register(modContainer);
         Objects.requireNonNull(modContainer.getEventBus()).addListener(this::registerPayloads);
@@ -72,25 +73,25 @@ public class EnderDrives {
     }
 
     @SubscribeEvent
-    public void onWorldLoad(LevelEvent.Load event) {
-        if (!event.getLevel().isClientSide() && event.getLevel() instanceof ServerLevel) {
-            if (isDatabaseActive) {
-                EnderDBManager.shutdown();
-                TapeDBManager.shutdown();
-            }
-            EnderDBManager.init();
-            TapeDBManager.init();
-            isDatabaseActive = true;
-        }
+    public void onServerStarting(ServerStartingEvent event) {
+        EnderExecutors.start();
+        EnderDBManager.start();
+        TapeDBManager.start();
     }
 
     @SubscribeEvent
-    public void onWorldUnload(LevelEvent.Unload event) {
-        if (!event.getLevel().isClientSide() && isDatabaseActive) {
-            EnderDBManager.shutdown();
-            TapeDBManager.shutdown();
-            isDatabaseActive = false;
-        }
+    public void onServerStopping(ServerStoppingEvent event) {
+        // Commands like the autobenchmark write to EnderDB, so they end before it stops.
+        EnderExecutors.stopCommands();
+        EnderDBManager.stop();
+        TapeDBManager.stop();
+        EnderExecutors.stop();
+        SerializedKeyCache.clear();
+    }
+
+    @SubscribeEvent
+    public void onServerTick(ServerTickEvent.Post event) {
+        EnderDBManager.onServerTickEnd();
     }
 
     @SubscribeEvent
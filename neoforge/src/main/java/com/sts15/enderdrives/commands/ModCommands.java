@@ -8,7 +8,11 @@ import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import com.sts15.enderdrives.config.serverConfig;
 import com.sts15.enderdrives.db.AEKeyCacheEntry;
 import com.sts15.enderdrives.db.EnderDBManager;
+import com.sts15.enderdrives.db.EnderExecutors;
+import com.sts15.enderdrives.db.SerializedKeyCache;
+import com.sts15.enderdrives.db.SnapshotFormat;
 import com.sts15.enderdrives.db.TapeDBManager;
+import com.sts15.enderdrives.db.WalEngine;
 import com.sts15.enderdrives.inventory.EnderDiskInventory;
 import com.sts15.enderdrives.items.EnderDiskItem;
 import net.minecraft.commands.CommandSourceStack;
@@ -25,6 +29,7 @@ import net.minecraft.world.level.Level;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ModCommands {
 
@@ -66,6 +71,7 @@ public class ModCommands {
                                                     ServerPlayer player = source.getPlayerOrException();
                                                     int frequency = IntegerArgumentType.getInteger(ctx, "frequency");
                                                     if (!validateFrequency(frequency, source)) return 0;
+                                                    if (!checkDatabaseReady(source)) return 0;
 
                                                     String type = StringArgumentType.getString(ctx, "type").toLowerCase();
                                                     UUID playerId = player.getUUID();
@@ -113,13 +119,52 @@ public class ModCommands {
                         .then(Commands.literal("stats")
                                 .executes(ctx -> {
                                     CommandSourceStack source = ctx.getSource();
+                                    EnderDBManager.CheckpointStats checkpoint = EnderDBManager.getLastCheckpointStats();
+                                    SnapshotFormat.WriteStats write = checkpoint == null ? null : checkpoint.write();
+                                    String checkpointInfo = checkpoint == null ? "none yet" :
+                                            (checkpoint.full() ? "full, " : "incremental, ") + checkpoint.channels() + " channels, " +
+                                                    write.records() + " records, " + write.bytes() / 1024 + " KiB in " +
+                                                    write.durationNanos() / 1_000_000 + " ms" +
+                                                    (write.allocatedBytes() < 0 ? "" : ", " + write.allocatedBytes() / 1024 + " KiB allocated");
+                                    long opsWritten = EnderDBManager.getTotalItemsWritten().get();
+                                    String walBytesPerOp = opsWritten == 0 ? "" :
+                                            String.format(" (%.1f WAL bytes/op)", (double) EnderDBManager.getTotalWalBytes() / opsWritten);
+                                    WalEngine.MetricsSnapshot wal = WalEngine.metrics(EnderDBManager.getWalDurability());
+                                    String walInfo = wal.durability() + ", " + wal.batches() + " batches (" +
+                                            String.format("%.1f", wal.avgBatchRecords()) + " records avg), commit " +
+                                            String.format("%.2f", wal.avgCommitNanos() / 1_000_000.0) + " ms avg / " +
+                                            String.format("%.2f", wal.maxCommitNanos() / 1_000_000.0) + " ms max, " +
+                                            wal.forces() + " fsyncs (" +
+                                            String.format("%.2f", wal.avgForceNanos() / 1_000_000.0) + " ms avg)";
+                                    StringBuilder executorInfo = new StringBuilder();
+                                    for (EnderExecutors.LaneStats lane : EnderExecutors.stats()) {
+                                        executorInfo.append("\n   - ").append(lane.lane()).append(": ")
+                                                .append(lane.threads()).append(" threads, ")
+                                                .append(lane.queued()).append(" queued, ")
+                                                .append(lane.running()).append(" running, ")
+                                                .append(lane.completed()).append(" done, wait ")
+                                                .append(String.format("%.2f", lane.avgWaitNanos() / 1_000_000.0)).append(" ms avg / ")
+                                                .append(String.format("%.2f", lane.maxWaitNanos() / 1_000_000.0)).append(" ms max, run ")
+                                                .append(String.format("%.2f", lane.avgRunNanos() / 1_000_000.0)).append(" ms avg");
+                                    }
                                     source.sendSuccess(() -> Component.literal(
                                             "EnderDB Stats:\n" +
                                                     " - WAL Queue: " + EnderDBManager.getWalQueueSize() + "\n" +
                                                     " - DB Entries: " + EnderDBManager.getDatabaseSize() + "\n" +
-                                                    " - Items Written: " + EnderDBManager.getTotalItemsWritten() + "\n" +
+                                                    " - Channels: " + EnderDBManager.getChannelCount() + "\n" +
+                                                    " - Item Dictionary: " + EnderDBManager.getDictionarySize() + " items\n" +
+                                                    " - Items Written: " + EnderDBManager.getTotalItemsWritten() + walBytesPerOp + "\n" +
                                                     " - Commits: " + EnderDBManager.getTotalCommits() + "\n" +
-                                                    " - DB File Size: " + EnderDBManager.getDatabaseFileSizeBytes() + " bytes"
+                                                    " - DB File Size: " + EnderDBManager.getDatabaseFileSizeBytes() + " bytes\n" +
+                                                    " - WAL: " + walInfo + "\n" +
+                                                    " - Last Checkpoint: " + checkpointInfo + "\n" +
+                                                    " - Segments: " + EnderDBManager.getSegmentCount() + "\n" +
+                                                    " - Key Cache: " + SerializedKeyCache.getSize() + " keys, " +
+                                                    String.format("%.1f", SerializedKeyCache.getHitRate() * 100) + "% hit rate (" +
+                                                    SerializedKeyCache.getHits() + " hits / " + SerializedKeyCache.getMisses() + " misses)\n" +
+                                                    " - Executors (" + EnderExecutors.getComputeParallelism() + " compute threads, scans split from " +
+                                                    EnderExecutors.getParallelThreshold() + " types" +
+                                                    (EnderExecutors.isParallelThresholdCalibrated() ? ", measured" : "") + "):" + executorInfo
                                     ), false);
                                     return 1;
                                 })
@@ -130,6 +175,7 @@ public class ModCommands {
                                             int frequency = IntegerArgumentType.getInteger(ctx, "frequency");
                                             CommandSourceStack source = ctx.getSource();
                                             if (!validateFrequency(frequency, source)) return 0;
+                                            if (!checkDatabaseReady(source)) return 0;
                                             ServerPlayer player = source.getPlayerOrException();
                                             UUID playerId = player.getUUID();
 
@@ -163,82 +209,86 @@ public class ModCommands {
 
                                             pendingBenchmarkRequests.remove(playerId);
 
-                                            Thread t = new Thread(() -> {
-                                                try {
-
-                                                    final int step = serverConfig.AUTO_BENCHMARK_STEP.get();
-                                                    final int maxSize = serverConfig.AUTO_BENCHMARK_MAX_TYPES.get();
-                                                    final double minSafeTPS = serverConfig.AUTO_BENCHMARK_MIN_TPS.get();
-                                                    int bestSize = 0;
-                                                    byte[] serialized;
-                                                    int currentSize = serverConfig.AUTO_BENCHMARK_INITIAL_SIZE.get();
-                                                    boolean continueTesting = true;
-
-                                                    while (continueTesting && currentSize <= maxSize) {
-                                                        EnderDBManager.clearFrequency(scopePrefix, frequency);
-
-                                                        long insertStart = System.currentTimeMillis();
-                                                        for (int i = 1; i <= currentSize; i++) {
-                                                            ItemStack paper = new ItemStack(Items.PAPER);
-                                                            paper.set(DataComponents.CUSTOM_NAME, Component.literal(String.valueOf(i)));
+                                            try {
+                                                EnderExecutors.submit(EnderExecutors.Lane.COMMAND, () -> {
+                                                    try {
 
-                                                            AEItemKey key = AEItemKey.of(paper);
-                                                            serialized = EnderDiskInventory.serializeItemStackToBytes(key.toStack(1));
-                                                            EnderDBManager.saveItem(scopePrefix, frequency, serialized, 1);
+                                                        final int step = serverConfig.AUTO_BENCHMARK_STEP.get();
+                                                        final int maxSize = serverConfig.AUTO_BENCHMARK_MAX_TYPES.get();
+                                                        final double minSafeTPS = serverConfig.AUTO_BENCHMARK_MIN_TPS.get();
+                                                        int bestSize = 0;
+                                                        byte[] serialized;
+                                                        int currentSize = serverConfig.AUTO_BENCHMARK_INITIAL_SIZE.get();
+                                                        boolean continueTesting = true;
+
+                                                        while (continueTesting && currentSize <= maxSize) {
+                                                            EnderDBManager.clearFrequency(scopePrefix, frequency);
+
+                                                            long insertStart = System.currentTimeMillis();
+                                                            for (int i = 1; i <= currentSize; i++) {
+                                                                if (Thread.currentThread().isInterrupted()) return;
+                                                                ItemStack paper = new ItemStack(Items.PAPER);
+                                                                paper.set(DataComponents.CUSTOM_NAME, Component.literal(String.valueOf(i)));
+
+                                                                AEItemKey key = AEItemKey.of(paper);
+                                                                serialized = EnderDiskInventory.serializeItemStackToBytes(key.toStack(1));
+                                                                EnderDBManager.saveItem(scopePrefix, frequency, serialized, 1);
+                                                            }
+                                                            long insertEnd = System.currentTimeMillis();
+                                                            Thread.sleep(serverConfig.AUTO_BENCHMARK_MS_SLEEP.get());
+
+                                                            long[] tickTimes = server.getTickTime(Level.OVERWORLD);
+                                                            double avgTick = Arrays.stream(tickTimes).average().orElse(0) / 1_000_000.0;
+                                                            double tps = Math.min(1000.0 / avgTick, 20.0);
+
+                                                            long queryStart = System.currentTimeMillis();
+                                                            int typeCount = EnderDBManager.getTypeCount(scopePrefix, frequency);
+                                                            long queryEnd = System.currentTimeMillis();
+
+                                                            long usedMem = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024 * 1024);
+
+                                                            double insertTime = insertEnd - insertStart;
+                                                            double queryTime = queryEnd - queryStart;
+
+                                                            int finalCurrentSize = currentSize;
+                                                            source.sendSuccess(() -> Component.literal(
+                                                                    "§b[AutoBenchmark]\n" +
+                                                                            "§7Tested Size: §a" + finalCurrentSize + " types\n" +
+                                                                            "§7Insert: §e" + insertTime + "ms\n" +
+                                                                            "§7Query: §e" + queryTime + "ms\n" +
+                                                                            "§7Types: §a" + typeCount + "\n" +
+                                                                            "§7Memory: §b" + usedMem + "MB\n" +
+                                                                            "§7TPS: §a" + String.format("%.2f", tps) +
+                                                                            " §7| Tick: §a" + String.format("%.2f", avgTick) + "ms"
+                                                            ), false);
+
+                                                            if (tps >= minSafeTPS) {
+                                                                bestSize = currentSize;
+                                                                currentSize += step;
+                                                            } else {
+                                                                source.sendSuccess(() -> Component.literal("§c⚠ TPS dropped below " + minSafeTPS + ". Stopping."), false);
+                                                                break;
+                                                            }
                                                         }
-                                                        long insertEnd = System.currentTimeMillis();
-                                                        EnderDBManager.flushDeltaBuffer();
-                                                        Thread.sleep(serverConfig.AUTO_BENCHMARK_MS_SLEEP.get());
-
-                                                        long[] tickTimes = server.getTickTime(Level.OVERWORLD);
-                                                        double avgTick = Arrays.stream(tickTimes).average().orElse(0) / 1_000_000.0;
-                                                        double tps = Math.min(1000.0 / avgTick, 20.0);
 
-                                                        long queryStart = System.currentTimeMillis();
-                                                        int typeCount = EnderDBManager.getTypeCount(scopePrefix, frequency);
-                                                        long queryEnd = System.currentTimeMillis();
-
-                                                        long usedMem = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024 * 1024);
-
-                                                        double insertTime = insertEnd - insertStart;
-                                                        double queryTime = queryEnd - queryStart;
-
-                                                        int finalCurrentSize = currentSize;
+                                                        int finalBestSize = bestSize;
                                                         source.sendSuccess(() -> Component.literal(
-                                                                "§b[AutoBenchmark]\n" +
-                                                                        "§7Tested Size: §a" + finalCurrentSize + " types\n" +
-                                                                        "§7Insert: §e" + insertTime + "ms\n" +
-                                                                        "§7Query: §e" + queryTime + "ms\n" +
-                                                                        "§7Types: §a" + typeCount + "\n" +
-                                                                        "§7Memory: §b" + usedMem + "MB\n" +
-                                                                        "§7TPS: §a" + String.format("%.2f", tps) +
-                                                                        " §7| Tick: §a" + String.format("%.2f", avgTick) + "ms"
+                                                                "§a✅ Best stable entry count: §b" + finalBestSize + " types"
                                                         ), false);
 
-                                                        if (tps >= minSafeTPS) {
-                                                            bestSize = currentSize;
-                                                            currentSize += step;
-                                                        } else {
-                                                            source.sendSuccess(() -> Component.literal("§c⚠ TPS dropped below " + minSafeTPS + ". Stopping."), false);
-                                                            break;
-                                                        }
-                                                    }
-
-                                                    int finalBestSize = bestSize;
-                                                    source.sendSuccess(() -> Component.literal(
-                                                            "§a✅ Best stable entry count: §b" + finalBestSize + " types"
-                                                    ), false);
-
-                                                    EnderDBManager.clearFrequency(scopePrefix, frequency);
-                                                    EnderDBManager.commitDatabase();
-
-                                                } catch (Exception ex) {
-                                                    ex.printStackTrace();
-                                                }
-                                            }, "EnderDB-autobenchmark");
+                                                        EnderDBManager.clearFrequency(scopePrefix, frequency);
+                                                        EnderDBManager.commitDatabase();
 
-                                            t.setDaemon(true);
-                                            t.start();
+                                                    } catch (InterruptedException ex) {
+                                                        // The server is stopping.
+                                                    } catch (Exception ex) {
+                                                        ex.printStackTrace();
+                                                    }
+                                                });
+                                            } catch (RejectedExecutionException e) {
+                                                source.sendFailure(Component.literal("EnderDrives background workers are not running."));
+                                                return 0;
+                                            }
                                             return 1;
                                         })
                                 )
@@ -250,6 +300,7 @@ public class ModCommands {
                                                 .executes(ctx -> {
                                                     int frequency = IntegerArgumentType.getInteger(ctx, "frequency");
                                                     if (!validateFrequency(frequency, ctx.getSource())) return 0;
+                                                    if (!checkDatabaseReady(ctx.getSource())) return 0;
                                                     int amount = IntegerArgumentType.getInteger(ctx, "amount");
                                                     CommandSourceStack source = ctx.getSource();
                                                     ServerPlayer player = source.getPlayerOrException();
@@ -676,6 +727,14 @@ public class ModCommands {
         );
     }
 
+    private static boolean checkDatabaseReady(CommandSourceStack source) {
+        if (!EnderDBManager.isReady()) {
+            source.sendFailure(Component.literal("§cEnderDB is still loading, try again in a moment."));
+            return false;
+        }
+        return true;
+    }
+
     private static boolean validateFrequency(int freq, CommandSourceStack source) {
         int min = serverConfig.FREQ_MIN.get();
         int max = serverConfig.FREQ_MAX.get();
@@ -1,5 +1,6 @@
 package com.sts15.enderdrives.config;
 
+import com.sts15.enderdrives.db.WalDurability;
 import net.neoforged.fml.ModContainer;
 import net.neoforged.fml.config.ModConfig;
 import net.neoforged.neoforge.common.ModConfigSpec;
@@ -48,13 +49,26 @@ public class serverConfig {
     public static final String CATEGORY_ENDERDB = "ender_db";
     public static final String CATEGORY_DESC_ENDERDB = "Configuration for the EnderDB database parameters.";
 
-    public static ModConfigSpec.IntValue END_DB_MERGE_BUFFER_THRESHOLD;
     public static ModConfigSpec.IntValue END_DB_MIN_COMMIT_INTERVAL_MS;
     public static ModConfigSpec.IntValue END_DB_MAX_COMMIT_INTERVAL_MS;
     public static ModConfigSpec.IntValue END_DB_MIN_DB_COMMIT_INTERVAL_MS;
     public static ModConfigSpec.IntValue END_DB_MAX_DB_COMMIT_INTERVAL_MS;
+    public static ModConfigSpec.IntValue END_DB_KEY_CACHE_SIZE;
+    public static ModConfigSpec.BooleanValue END_DB_SNAPSHOT_COMPRESSION;
+    public static ModConfigSpec.EnumValue<WalDurability> END_DB_WAL_DURABILITY;
+    public static ModConfigSpec.BooleanValue END_DB_ASYNC_STARTUP;
+    public static ModConfigSpec.IntValue END_DB_WAL_FSYNC_INTERVAL_MS;
     public static ModConfigSpec.BooleanValue END_DB_DEBUG_LOG;
 
+    // === Background Executor Configs ===
+    public static final String CATEGORY_EXECUTORS = "executors";
+    public static final String CATEGORY_DESC_EXECUTORS = "Thread pools for EnderDB and TapeDB background work.";
+
+    public static ModConfigSpec.IntValue EXECUTOR_LOAD_THREADS;
+    public static ModConfigSpec.IntValue EXECUTOR_FLUSH_THREADS;
+    public static ModConfigSpec.IntValue EXECUTOR_COMPUTE_THREADS;
+    public static ModConfigSpec.IntValue EXECUTOR_PARALLEL_THRESHOLD;
+
 
     // === Tape Disk Configs ===
     public static final String CATEGORY_TAPEDISK = "tape_disk";
@@ -84,6 +98,7 @@ public class serverConfig {
         enderDiskTypeLimits();
         tapeDiskConfig();
         enderDBConfig();
+        executorConfig();
         enderCommandConfig();
         container.registerConfig(ModConfig.Type.SERVER, SERVER_BUILDER.build());
     }
@@ -162,9 +177,6 @@ public class serverConfig {
 
     private static void enderDBConfig() {
         SERVER_BUILDER.comment(CATEGORY_DESC_ENDERDB).push(CATEGORY_ENDERDB);
-        END_DB_MERGE_BUFFER_THRESHOLD = SERVER_BUILDER
-                .comment("Number of pending WAL entries before merging")
-                .defineInRange("merge_buffer_threshold", 1000, 1, 10_000);
         END_DB_MIN_COMMIT_INTERVAL_MS = SERVER_BUILDER
                 .comment("Minimum time (ms) between WAL commits")
                 .defineInRange("min_commit_interval_ms", 2500, 500, 60000);
@@ -177,12 +189,53 @@ public class serverConfig {
         END_DB_MAX_DB_COMMIT_INTERVAL_MS = SERVER_BUILDER
                 .comment("Maximum time (ms) between DB flush commits")
                 .defineInRange("max_db_commit_interval_ms", 60000, 500, 60000);
+        END_DB_KEY_CACHE_SIZE = SERVER_BUILDER
+                .comment("Maximum number of item keys whose serialized form is cached for insert/extract lookups")
+                .defineInRange("serialized_key_cache_size", 16384, 256, 1_048_576);
+        END_DB_SNAPSHOT_COMPRESSION = SERVER_BUILDER
+                .comment("Compress enderdrives.bin snapshot blocks with Deflate (smaller file, slower checkpoints)")
+                .define("snapshot_compression", false);
+        END_DB_WAL_DURABILITY = SERVER_BUILDER
+                .comment("How WAL writes reach the disk, for both EnderDB and TapeDB:",
+                        "ASYNC - hand records to the OS only, TapeDB in background batches (fastest, recent changes can be lost on power loss)",
+                        "INTERVAL_FSYNC - fsync in the background every wal_fsync_interval_ms",
+                        "FSYNC_PER_BATCH - fsync every commit batch before it is acknowledged (safest, slowest)")
+                .defineEnum("wal_durability", WalDurability.INTERVAL_FSYNC);
+        END_DB_WAL_FSYNC_INTERVAL_MS = SERVER_BUILDER
+                .comment("Time (ms) between background WAL fsyncs when wal_durability is INTERVAL_FSYNC")
+                .defineInRange("wal_fsync_interval_ms", 1000, 50, 60000);
+        END_DB_ASYNC_STARTUP = SERVER_BUILDER
+                .comment("Load EnderDB in the background so the server starts without waiting for it.",
+                        "Ender cells show as full and hold nothing until loading has finished.")
+                .define("async_startup", true);
         END_DB_DEBUG_LOG = SERVER_BUILDER
                 .comment("Enable EXTREMELY verbose debug logging for EnderDB")
                 .define("debug_log", false);
         SERVER_BUILDER.pop();
     }
 
+    private static void executorConfig() {
+        SERVER_BUILDER.comment(CATEGORY_DESC_EXECUTORS).push(CATEGORY_EXECUTORS);
+
+        EXECUTOR_LOAD_THREADS = SERVER_BUILDER
+                .comment("Threads for latency-sensitive work players wait on, like loading tapes and the database")
+                .defineInRange("load_threads", 2, 1, 16);
+
+        EXECUTOR_FLUSH_THREADS = SERVER_BUILDER
+                .comment("Low priority threads for bulk writes: checkpoints and tape flushes")
+                .defineInRange("flush_threads", 1, 1, 16);
+
+        EXECUTOR_COMPUTE_THREADS = SERVER_BUILDER
+                .comment("Threads for splitting large channel scans and database loading (0 = CPU cores - 1, at most 4)")
+                .defineInRange("compute_threads", 0, 0, 64);
+
+        EXECUTOR_PARALLEL_THRESHOLD = SERVER_BUILDER
+                .comment("Item types a channel needs before its scans are split across compute threads (0 = measure at startup)")
+                .defineInRange("parallel_threshold", 0, 0, 1 << 24);
+
+        SERVER_BUILDER.pop();
+    }
+
     private static void tapeDiskConfig() {
         SERVER_BUILDER.comment(CATEGORY_DESC_TAPEDISK).push(CATEGORY_TAPEDISK);
 
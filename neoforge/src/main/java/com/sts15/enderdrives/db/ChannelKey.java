@@ -0,0 +1,12 @@
+package com.sts15.enderdrives.db;
+
+/**
+ * Identifies one EnderDB channel: a scope prefix (global, player_..., team_...) paired with a frequency.
+ */
+public record ChannelKey(String scope, int freq) {
+
+    @Override
+    public String toString() {
+        return scope + "[" + freq + "]";
+    }
+}
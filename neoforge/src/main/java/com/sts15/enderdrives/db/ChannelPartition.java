@@ -0,0 +1,259 @@
+package com.sts15.enderdrives.db;
+
+import appeng.api.stacks.AEItemKey;
+import appeng.api.stacks.KeyCounter;
+import org.jetbrains.annotations.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds every stored item of a single (scope, frequency) channel.
+ * Lookups, type counts and clears only touch this channel's own map, so their cost
+ * depends on the size of the channel rather than on the whole database.
+ * Each item owns one {@link ItemSlot}; counts are changed on the slot, never by replacing map values.
+ */
+public class ChannelPartition {
+
+    private final ChannelKey channel;
+    private final ConcurrentHashMap<Integer, ItemSlot> slots = new ConcurrentHashMap<>();
+    private final AtomicInteger typeCount = new AtomicInteger();
+    private final AtomicLong totalItems = new AtomicLong();
+    private final AtomicLong epoch = new AtomicLong();
+    private volatile StackView stackView;
+    private volatile boolean dirty = false;
+    private volatile boolean dropped = false;
+
+    /**
+     * The stacks of the channel as of one epoch. The counter is never modified after it is published.
+     */
+    private record StackView(long epoch, KeyCounter stacks) {}
+
+    public ChannelPartition(ChannelKey channel) {
+        this.channel = channel;
+    }
+
+    public ChannelKey channel() {
+        return channel;
+    }
+
+    public ConcurrentHashMap<Integer, ItemSlot> slots() {
+        return slots;
+    }
+
+    /**
+     * Returns the slot of an item. Hot paths pass an id that is already boxed, so the lookup does not allocate.
+     *
+     * @param itemId The item id.
+     * @return The slot, or null if the item is not stored.
+     */
+    public @Nullable ItemSlot slot(Integer itemId) {
+        return slots.get(itemId);
+    }
+
+    /**
+     * Returns the slot of an item, creating an empty one if the item is not stored yet.
+     *
+     * @param itemId The item id.
+     * @return The slot.
+     */
+    public ItemSlot getOrCreateSlot(int itemId) {
+        ItemSlot slot = slots.get(itemId);
+        if (slot != null) return slot;
+        // The dictionary shares one lazily decoded key per item across all channels.
+        return slots.computeIfAbsent(itemId, id -> new ItemSlot(this, id, ItemDictionary.keyOf(id)));
+    }
+
+    /**
+     * Removes a slot once its count is 0. A slot that was refilled in the meantime is kept.
+     *
+     * @param slot The slot.
+     */
+    public void retireIfEmpty(ItemSlot slot) {
+        if (slot.retireIfEmpty()) {
+            slots.remove(slot.itemId(), slot);
+        }
+    }
+
+    /**
+     * Removes a slot that was found retired but is still mapped, so the next lookup creates a fresh one.
+     *
+     * @param slot The retired slot.
+     */
+    public void unlink(ItemSlot slot) {
+        slots.remove(slot.itemId(), slot);
+    }
+
+    public int typeCount() {
+        return typeCount.get();
+    }
+
+    /**
+     * Reserves a type for an item that is about to be stored for the first time, as long as the channel
+     * holds fewer than {@code typeLimit} types. Concurrent inserts of different new items race on this
+     * compare-and-set, so the limit can never be exceeded. The reservation is consumed or released by
+     * {@link #onCountChanged(long, long, boolean)}.
+     *
+     * @param typeLimit The maximum number of types.
+     * @return true if a type was reserved.
+     */
+    public boolean tryAdmitType(int typeLimit) {
+        while (true) {
+            int current = typeCount.get();
+            if (current >= typeLimit) return false;
+            if (typeCount.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * Releases a type reserved by {@link #tryAdmitType} that was not used.
+     */
+    public void releaseType() {
+        typeCount.decrementAndGet();
+    }
+
+    /**
+     * Checks whether an item is stored with a count above 0.
+     *
+     * @param itemId The item id.
+     * @return true if inserting the item would not add a new type.
+     */
+    public boolean isKnown(Integer itemId) {
+        ItemSlot slot = slots.get(itemId);
+        return slot != null && slot.count() > 0;
+    }
+
+    public long totalItemCount() {
+        return totalItems.get();
+    }
+
+    /**
+     * Returns the change epoch of the channel. It increases whenever the count of any item changes,
+     * so two equal reads mean nothing in the channel changed in between.
+     *
+     * @return The current epoch.
+     */
+    public long epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Advances the epoch after a slot's count has changed.
+     * Called after the change, so a reader that sees the new epoch also sees the new count.
+     */
+    public void markChanged() {
+        epoch.incrementAndGet();
+    }
+
+    /**
+     * Returns the stacks of the channel as a counter that is rebuilt only after the channel changed.
+     * The returned counter is shared between callers and must only be read, e.g. via {@link KeyCounter#addAll}.
+     *
+     * @return The stacks, skipping items whose key can no longer be decoded.
+     */
+    public KeyCounter availableStacks() {
+        StackView view = stackView;
+        long current = epoch.get();
+        if (view != null && view.epoch() == current) {
+            return view.stacks();
+        }
+        KeyCounter stacks = new KeyCounter();
+        for (ItemSlot slot : slots.values()) {
+            long count = slot.count();
+            if (count <= 0) continue;
+            AEItemKey aeKey = slot.itemKey().get();
+            if (aeKey != null) {
+                stacks.add(aeKey, count);
+            }
+        }
+        // Tagged with the epoch read before the scan, so a change made during the scan forces a rebuild next time.
+        stackView = new StackView(current, stacks);
+        return stacks;
+    }
+
+    /**
+     * Keeps the channel totals in step with a single slot changing from one count to another.
+     * Callers must invoke this exactly once per successful change of a slot.
+     *
+     * @param oldCount The count before the change (0 if the item was not stored).
+     * @param newCount The count after the change (0 if the item is gone).
+     */
+    public void onCountChanged(long oldCount, long newCount) {
+        onCountChanged(oldCount, newCount, false);
+    }
+
+    /**
+     * Keeps the channel totals in step with a slot change that may have been admitted by {@link #tryAdmitType}.
+     * A reserved type is kept if the item became stored by this change and released otherwise.
+     *
+     * @param oldCount     The count before the change.
+     * @param newCount     The count after the change.
+     * @param typeAdmitted Whether a type was reserved for this change.
+     */
+    public void onCountChanged(long oldCount, long newCount, boolean typeAdmitted) {
+        long before = Math.max(0L, oldCount);
+        long after = Math.max(0L, newCount);
+        if (before == 0 && after > 0) {
+            if (!typeAdmitted) typeCount.incrementAndGet();
+        } else {
+            if (typeAdmitted) releaseType();
+            if (before > 0 && after == 0) typeCount.decrementAndGet();
+        }
+        if (after != before) totalItems.addAndGet(after - before);
+    }
+
+    /**
+     * Stores an absolute count without journaling it, as done while loading or migrating data.
+     *
+     * @param itemId The item id.
+     * @param count  The count to store.
+     */
+    public void put(int itemId, long count) {
+        while (true) {
+            ItemSlot slot = count > 0 ? getOrCreateSlot(itemId) : slots.get(itemId);
+            if (slot == null) return;
+            long old = slot.set(count);
+            if (old == ItemSlot.RETIRED) {
+                unlink(slot);
+                continue;
+            }
+            if (old != count) {
+                onCountChanged(old, count);
+                markChanged();
+            }
+            if (count <= 0) {
+                retireIfEmpty(slot);
+            }
+            return;
+        }
+    }
+
+    public boolean isEmpty() {
+        return slots.isEmpty();
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    public void markDirty() {
+        dirty = true;
+    }
+
+    public void markClean() {
+        dirty = false;
+    }
+
+    /**
+     * Returns whether the channel was cleared. Slots of a dropped partition are no longer written to the WAL.
+     *
+     * @return true once the partition has been dropped.
+     */
+    public boolean isDropped() {
+        return dropped;
+    }
+
+    public void markDropped() {
+        dropped = true;
+    }
+}
@@ -1,106 +1,335 @@
 package com.sts15.enderdrives.db;
 
 import appeng.api.stacks.AEItemKey;
+import appeng.api.stacks.KeyCounter;
 import com.sts15.enderdrives.config.serverConfig;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.level.storage.LevelResource;
 import net.neoforged.neoforge.server.ServerLifecycleHooks;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.zip.CRC32;
-import static com.sts15.enderdrives.inventory.EnderDiskInventory.deserializeItemStackFromBytes;
 
 public class EnderDBManager {
 
     private static final Logger LOGGER = LogManager.getLogger("EnderDrives");
-    public static final ConcurrentSkipListMap<AEKey, StoredEntry> dbMap = new ConcurrentSkipListMap<>();
-    private static final BlockingQueue<byte[]> walQueue = new LinkedBlockingQueue<>();
-    public static final ConcurrentHashMap<AEKey, Long> deltaBuffer = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, CachedCount> itemCountCache = new ConcurrentHashMap<>();
-    private static File dbFile, currentWAL;
-    private static FileOutputStream walFileStream;
-    private static DataOutputStream walWriter;
+    private static final int WAL_MAGIC_V2 = 0x45445732; // "EDW2"
+    private static final int WAL_MAGIC_V1 = 0x45445731; // "EDW1"
+    private static final int WAL_FORMAT_LEGACY = 0, WAL_FORMAT_DELTA = 1, WAL_FORMAT_ABSOLUTE = 2, WAL_FORMAT_COMPACT = 3;
+    private static final ConcurrentHashMap<ChannelKey, ChannelPartition> partitions = new ConcurrentHashMap<>();
+    private static final ConcurrentLinkedQueue<ItemSlot> changeLog = new ConcurrentLinkedQueue<>();
+    private static final int MAX_SEGMENTS = 32;
+    private static final long MIN_SEGMENT_BYTES_FOR_FULL = 4L * 1024 * 1024;
+    private static File dbFile, currentWAL, dictFile, manifestFile;
+    private static volatile SegmentManifest manifest = SegmentManifest.empty(1);
+    private static final Set<ChannelKey> droppedChannels = ConcurrentHashMap.newKeySet();
+    private static volatile WalEngine wal;
+    private static final WalFormat.Encoder walEncoder = new WalFormat.Encoder();
     private static final Object commitLock = new Object();
-    private static volatile boolean running = true, dirty = false;
+    private static final Object checkpointLock = new Object();
+    private static final AtomicBoolean checkpointQueued = new AtomicBoolean(false);
+    private static volatile boolean dirty = false;
     private static long lastCommitTime = System.currentTimeMillis();
-    private static long lastDbCommitTime = System.currentTimeMillis();
+    private static volatile long lastDbCommitTime = System.currentTimeMillis();
+    private static final int COMMIT_RECORDS_THRESHOLD = 2_000;
+    private static final int MAX_BATCH_RECORDS = 50_000;
+    private static final int PARALLEL_REPLAY_MIN_UPDATES = 10_000;
+    private static final AtomicInteger walQueuedOps = new AtomicInteger(0);
+    private static final AtomicBoolean commitSignalled = new AtomicBoolean(false);
     private static final AtomicLong totalItemsWritten = new AtomicLong(0);
+    private static final AtomicLong totalWalBytes = new AtomicLong(0);
     private static final AtomicLong totalCommits = new AtomicLong(0);
-    private static final ForkJoinPool SHARED_PARALLEL_POOL = new ForkJoinPool(Math.min(4, Runtime.getRuntime().availableProcessors()));
-    static int mergeThreshold = serverConfig.END_DB_MERGE_BUFFER_THRESHOLD.get();
     static long minCommit = serverConfig.END_DB_MIN_COMMIT_INTERVAL_MS.get();
     static long maxCommit = serverConfig.END_DB_MAX_COMMIT_INTERVAL_MS.get();
     static long minDbCommit = serverConfig.END_DB_MIN_DB_COMMIT_INTERVAL_MS.get();
     static long maxDbCommit = serverConfig.END_DB_MAX_DB_COMMIT_INTERVAL_MS.get();
+    static boolean compressSnapshots = serverConfig.END_DB_SNAPSHOT_COMPRESSION.get();
+    static WalDurability walDurability = serverConfig.END_DB_WAL_DURABILITY.get();
+    static long walFsyncInterval = serverConfig.END_DB_WAL_FSYNC_INTERVAL_MS.get();
     static boolean debugLog = serverConfig.END_DB_DEBUG_LOG.get();
-    private static volatile boolean isShutdown = false;
+    static boolean asyncStartup = serverConfig.END_DB_ASYNC_STARTUP.get();
+    private static final Object lifecycleLock = new Object();
+    private static final AtomicBoolean shutdownHookRegistered = new AtomicBoolean(false);
+    private static volatile Engine engine;
+    private static volatile boolean ready = false;
+    private static final ConcurrentHashMap<ChannelKey, Map<Object, Runnable>> readyListeners = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<ChannelKey, Map<Object, Consumer<Object>>> subscribers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<ChannelKey, Object> changedChannels = new ConcurrentHashMap<>();
+    private static final Object ANY_ORIGIN = new Object();
+    private static final ConcurrentHashMap<ChannelKey, ChannelQuery> queryMemo = new ConcurrentHashMap<>();
+    private static volatile CheckpointStats lastCheckpoint;
+
+    /**
+     * Figures of the last checkpoint.
+     *
+     * @param full     Whether enderdrives.bin was rewritten, rather than a segment with the changed channels.
+     * @param channels The number of channels written or dropped.
+     * @param write    The cost of writing the file.
+     */
+    public record CheckpointStats(boolean full, int channels, SnapshotFormat.WriteStats write) {}
+
+    /**
+     * The background work of one started database. Every {@link #start()} creates a new instance and {@link #stop()}
+     * retires it, so a task left over from an earlier run only ever sees its own stop flag.
+     * Checkpoints are submitted while holding the engine's monitor, so none is submitted after stop has waited for them.
+     */
+    private static final class Engine {
+        volatile boolean running = true;
+        Future<?> loader;
+        volatile Thread commitThread;
+        Future<?> checkpoint;
+    }
 
 // ==== Public API ====
 
     /**
-     * Initializes the EnderDB system, loading the database and replaying WAL logs.
-     * Sets up the background commit thread and registers a shutdown hook.
+     * Starts EnderDB for the current server. Called once when the server starts; a second call while the
+     * database is running is ignored, so it is loaded exactly once and gets exactly one commit thread.
+     * With async startup enabled the database is loaded on a background thread and this returns immediately;
+     * until loading finishes {@link #isReady()} is false and Ender cells stay offline. Otherwise the database
+     * is loaded before this returns.
      */
-    public static void init() {
+    public static void start() {
+        synchronized (lifecycleLock) {
+            if (engine != null) {
+                LOGGER.warn("EnderDB is already running, ignoring start request.");
+                return;
+            }
+            if (shutdownHookRegistered.compareAndSet(false, true)) {
+                // Covers a JVM exit without a server stop; does nothing once stop() has run.
+                Runtime.getRuntime().addShutdownHook(new Thread(EnderDBManager::stop, "EnderDB-ShutdownHook"));
+            }
+            Engine started = new Engine();
+            engine = started;
+            ready = false;
+            if (!resolveFiles()) return;
+            if (asyncStartup) {
+                started.loader = EnderExecutors.submit(EnderExecutors.Lane.LOAD, () -> load(started));
+                LOGGER.info("Loading EnderDB in the background; Ender cells come online once it is ready.");
+            } else {
+                load(started);
+            }
+        }
+    }
+
+    private static boolean resolveFiles() {
         try {
             Path worldDir = ServerLifecycleHooks.getCurrentServer()
                     .getWorldPath(LevelResource.ROOT).resolve("data").resolve("enderdrives");
             Files.createDirectories(worldDir);
             dbFile = worldDir.resolve("enderdrives.bin").toFile();
             currentWAL = worldDir.resolve("enderdrives.wal").toFile();
+            dictFile = worldDir.resolve("enderdrives.dict").toFile();
+            manifestFile = worldDir.resolve("enderdrives.manifest").toFile();
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Could not create the EnderDB data directory: ", e);
+            return false;
+        }
+    }
+
+    /**
+     * Loads the database and replays WAL logs, then opens the WAL, starts the commit thread and marks
+     * the database ready. Snapshot blocks are decoded and WAL updates applied in parallel on the EnderDrives
+     * compute pool; the time spent in each phase is logged.
+     * If loading fails the database never becomes ready, so nothing can overwrite the files on disk.
+     *
+     * @param owner The engine the started threads belong to.
+     */
+    private static void load(Engine owner) {
+        try {
+            ForkJoinPool loadPool = EnderExecutors.compute();
+            long start = System.nanoTime();
+            ItemDictionary.load(dictFile);
+            long dictionaryDone = System.nanoTime();
+            long records = loadDatabase(loadPool);
+            long snapshotDone = System.nanoTime();
+            ReplayStats replay = replayWALs(loadPool);
+            long replayDone = System.nanoTime();
             migrateOldRecords();
+            checkpointAfterRecovery(replay.files());
             openWALStream();
-            replayWALs();
-            loadDatabase();
-            startBackgroundCommit();
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                LOGGER.info("Shutdown hook triggered.");
-                shutdown();
-            }));
-        } catch (IOException e) {
-            e.printStackTrace();
+            long end = System.nanoTime();
+            LOGGER.info("EnderDB ready in {} ms on {} threads: dictionary {} ms ({} items), snapshot {} ms ({} records, {} channels), "
+                            + "WAL replay {} ms ({} files, {} updates), recovery checkpoint {} ms.",
+                    (end - start) / 1_000_000, loadPool.getParallelism(),
+                    (dictionaryDone - start) / 1_000_000, ItemDictionary.size(),
+                    (snapshotDone - dictionaryDone) / 1_000_000, records, partitions.size(),
+                    (replayDone - snapshotDone) / 1_000_000, replay.files().size(), replay.updates(),
+                    (end - replayDone) / 1_000_000);
+            startBackgroundCommit(owner);
+            markReady();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("EnderDB failed to load, Ender cells stay offline: ", e);
         }
     }
 
     /**
-     * Shuts down the EnderDB system gracefully by flushing buffers, committing data, and closing WAL streams.
+     * Returns whether the database has finished loading. Until then, reads see partial data and
+     * writes must not be made; Ender cells report themselves as loading.
+     *
+     * @return true once the database is loaded.
      */
-    public static void shutdown() {
-        if (isShutdown) return;
-        isShutdown = true;
-        running = false;
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Registers a callback to run on the server thread once a channel can be used. All channels become
+     * ready together once WAL replay has finished, since any WAL may hold records for any channel.
+     * A later registration with the same owner replaces the earlier one; if the channel is already
+     * ready the callback is scheduled right away.
+     *
+     * @param scopePrefix The scope name.
+     * @param freq        The frequency ID.
+     * @param owner       Identifies the waiter, typically the mounted cell.
+     * @param callback    The callback.
+     */
+    public static void onChannelReady(String scopePrefix, int freq, Object owner, Runnable callback) {
+        ChannelKey channel = new ChannelKey(scopePrefix, freq);
+        readyListeners.computeIfAbsent(channel, k -> new ConcurrentHashMap<>()).put(owner, callback);
+        if (ready) {
+            runReadyListeners(channel);
+        }
+    }
+
+    private static void markReady() {
+        ready = true;
+        EnderExecutors.calibrateWhenIdle();
+        for (ChannelKey channel : readyListeners.keySet()) {
+            runReadyListeners(channel);
+        }
+    }
+
+    private static void runReadyListeners(ChannelKey channel) {
+        Map<Object, Runnable> listeners = readyListeners.remove(channel);
+        if (listeners == null || listeners.isEmpty()) return;
+        MinecraftServer server = ServerLifecycleHooks.getCurrentServer();
+        if (server == null) return;
+        log("Channel %s is ready, notifying %d waiting host(s)", channel, listeners.size());
+        for (Runnable callback : listeners.values()) {
+            server.execute(callback);
+        }
+    }
+
+    /**
+     * Stops EnderDB when the server stops: waits for a running load, stops the engine's threads, flushes buffers,
+     * writes a final checkpoint and closes the WAL. Does nothing if the database is not running.
+     */
+    public static void stop() {
+        synchronized (lifecycleLock) {
+            Engine stopping = engine;
+            if (stopping == null) return;
+            stopEngine(stopping);
+            engine = null;
+        }
+    }
+
+    private static void stopEngine(Engine stopping) {
+        Future<?> loader = stopping.loader;
+        if (loader != null) {
+            // Stopping half-loaded would checkpoint a partial database.
+            try {
+                loader.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                LOGGER.error("EnderDB loader failed: ", e.getCause());
+            }
+        }
+        Future<?> checkpoint;
+        synchronized (stopping) {
+            stopping.running = false;
+            checkpoint = stopping.checkpoint;
+        }
+        Thread committer = stopping.commitThread;
+        if (committer != null) {
+            LockSupport.unpark(committer);
+            // Waited for without a limit: the commit thread drains the change log outside the commit lock, so a
+            // final drain running next to it could write an older count after a newer one.
+            try {
+                committer.join(5_000);
+                if (committer.isAlive()) {
+                    LOGGER.warn("Commit thread is still writing its last batch, waiting for it to finish.");
+                    committer.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (checkpoint != null) {
+            try {
+                checkpoint.get(30, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                LOGGER.warn("Timed out waiting for the running checkpoint to finish.");
+            } catch (ExecutionException e) {
+                LOGGER.error("Background checkpoint failed: ", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Writers made after this point are refused, so nothing is queued behind the final drain.
+        boolean loaded = ready;
+        ready = false;
         try {
-            synchronized (commitLock) {
-                flushDeltaBuffer();
+            if (loaded) {
+                synchronized (commitLock) {
+                    List<WalFormat.Update> remaining = new ArrayList<>();
+                    drainChangeLog(remaining, Integer.MAX_VALUE);
+                    writeWALBatch(remaining);
+                }
                 commitDatabase();
-                truncateCurrentWAL();
-                closeWALStream();
+            } else {
+                LOGGER.warn("EnderDB never finished loading, leaving its files untouched.");
+            }
+            synchronized (commitLock) {
+                if (wal != null) {
+                    closeWALStream();
+                }
             }
         } catch (IOException e) {
             LOGGER.error("Exception during EnderDBManager shutdown: ", e);
         }
-        dbMap.clear();
-        deltaBuffer.clear();
-        itemCountCache.clear();
-        walQueue.clear();
+        ready = false;
+        readyListeners.clear();
+        subscribers.clear();
+        changedChannels.clear();
+        queryMemo.clear();
+        wal = null;
+        ItemDictionary.close();
+        // Callers holding on to a partition look it up again once it is marked dropped.
+        partitions.values().forEach(ChannelPartition::markDropped);
+        partitions.clear();
+        droppedChannels.clear();
+        manifest = SegmentManifest.empty(1);
+        changeLog.clear();
+        walQueuedOps.set(0);
+        checkpointQueued.set(false);
         totalItemsWritten.set(0);
+        totalWalBytes.set(0);
         totalCommits.set(0);
-        isShutdown = false;
-        running = true;
         dirty = false;
         lastCommitTime = System.currentTimeMillis();
         lastDbCommitTime = System.currentTimeMillis();
-        LOGGER.info("[EnderDBManager] Shutdown complete and ready for re-init.");
+        LOGGER.info("[EnderDBManager] Stopped.");
     }
 
 
     /**
-     * Saves an item delta into the database, merging counts by item key.
+     * Applies an item delta to the item's counter right away and queues the item for the WAL.
      *
      * @param scopePrefix The scope name (e.g. player or global).
      * @param freq        The frequency ID associated with the item.
@@ -108,12 +337,103 @@ public class EnderDBManager {
      * @param deltaCount  The count delta to apply (positive or negative).
      */
     public static void saveItem(String scopePrefix, int freq, byte[] itemNbtBinary, long deltaCount) {
-        AEKey key = new AEKey(scopePrefix, freq, itemNbtBinary);
-        deltaBuffer.merge(key, deltaCount, Long::sum);
+        saveItem(scopePrefix, freq, itemNbtBinary, deltaCount, null);
+    }
+
+    /**
+     * Saves an item delta made through a specific subscriber, which is then left out of the change
+     * notification for this tick since it already knows about the change.
+     *
+     * @param scopePrefix The scope name (e.g. player or global).
+     * @param freq        The frequency ID associated with the item.
+     * @param itemNbtBinary Serialized ItemStack data.
+     * @param deltaCount  The count delta to apply (positive or negative).
+     * @param origin      The subscriber owner that made the change, or null to notify every subscriber.
+     */
+    public static void saveItem(String scopePrefix, int freq, byte[] itemNbtBinary, long deltaCount, @Nullable Object origin) {
+        if (!ready) return;
+        int itemId = ItemDictionary.intern(itemNbtBinary);
+        while (true) {
+            ChannelPartition partition = getOrCreatePartition(scopePrefix, freq);
+            long applied = updateCount(partition, itemId, deltaCount, false, true);
+            // A partition dropped by clearFrequency is discarded with everything written to it; the delta
+            // is applied again to the channel's new partition.
+            if (partition.isDropped()) continue;
+            if (applied != 0) {
+                markChannelChanged(partition.channel(), origin);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Inserts an item into a channel that holds at most {@code typeLimit} types.
+     * An item that is already stored is always accepted; a new one first reserves a type with a compare-and-set
+     * on the channel's type count, so concurrent inserts of different new items never exceed the limit.
+     * Callers serialize changes of the same item (Ender cells use striped item locks), so an item cannot
+     * run empty between the stored check and the add. An insert that lands in a partition dropped by
+     * {@link #clearFrequency} in the meantime is made again on the channel's new partition.
+     *
+     * @param scopePrefix The scope name.
+     * @param freq        The frequency ID.
+     * @param itemNbtBinary Serialized ItemStack data.
+     * @param amount      The amount to insert.
+     * @param typeLimit   The maximum number of types on the channel.
+     * @param origin      The subscriber owner that made the change, or null to notify every subscriber.
+     * @return The amount inserted, 0 if the item would need a type and none is free.
+     */
+    public static long insertItem(String scopePrefix, int freq, byte[] itemNbtBinary, long amount, int typeLimit, @Nullable Object origin) {
+        if (amount <= 0 || !ready) return 0L;
+        int itemId = ItemDictionary.find(itemNbtBinary);
+        while (true) {
+            ChannelPartition partition = getPartition(scopePrefix, freq);
+            if (partition == null) {
+                // An empty channel admits a first type whenever the limit allows any, so it is only created then;
+                // a rejected insert never leaves an empty partition behind to be checkpointed.
+                if (typeLimit <= 0) return 0L;
+                partition = getOrCreatePartition(scopePrefix, freq);
+            }
+            boolean typeAdmitted = false;
+            if (itemId < 0 || !partition.isKnown(itemId)) {
+                if (!partition.tryAdmitType(typeLimit)) return 0L;
+                typeAdmitted = true;
+                if (itemId < 0) itemId = ItemDictionary.intern(itemNbtBinary);
+            }
+            long applied = updateCount(partition, itemId, amount, false, true, typeAdmitted);
+            // Checked after the compare-and-set: the items must not be reported as stored in a partition
+            // that is no longer written anywhere.
+            if (partition.isDropped()) continue;
+            if (applied != 0) {
+                markChannelChanged(partition.channel(), origin);
+            }
+            return amount;
+        }
+    }
 
-        if (deltaBuffer.size() >= mergeThreshold ) {
-            flushDeltaBuffer();
+    /**
+     * Removes up to {@code amount} of an item in a single compare-and-set on its slot, so concurrent
+     * extracts never take a count below 0 and never remove more than was stored.
+     * Nothing is handed out if the channel was cleared while the extract ran.
+     *
+     * @param scopePrefix The scope name.
+     * @param freq        The frequency ID.
+     * @param itemNbtBinary Serialized ItemStack data.
+     * @param amount      The amount to remove.
+     * @param origin      The subscriber owner that made the change, or null to notify every subscriber.
+     * @return The amount actually removed.
+     */
+    public static long extractItem(String scopePrefix, int freq, byte[] itemNbtBinary, long amount, @Nullable Object origin) {
+        if (amount <= 0 || !ready) return 0L;
+        int itemId = ItemDictionary.find(itemNbtBinary);
+        if (itemId < 0) return 0L;
+        ChannelPartition partition = getPartition(scopePrefix, freq);
+        if (partition == null) return 0L;
+        long removed = -updateCount(partition, itemId, -amount, false, true);
+        if (partition.isDropped()) return 0L;
+        if (removed != 0) {
+            markChannelChanged(partition.channel(), origin);
         }
+        return removed;
     }
 
     /**
@@ -125,26 +445,47 @@ public class EnderDBManager {
      * @return The current stored count for the item.
      */
     public static long getItemCount(String scopePrefix, int freq, byte[] keyBytes) {
-        AEKey key = new AEKey(scopePrefix, freq, keyBytes);
-        long committed = dbMap.getOrDefault(key, new StoredEntry(0L, null)).count();
-        long pending = deltaBuffer.getOrDefault(key, 0L);
-        return committed + pending;
+        int itemId = ItemDictionary.find(keyBytes);
+        if (itemId < 0) return 0L;
+        ChannelPartition partition = getPartition(scopePrefix, freq);
+        ItemSlot slot = partition == null ? null : partition.slot(itemId);
+        return slot == null ? 0L : slot.count();
     }
 
 
     /**
      * Clears all entries for a given frequency and scope.
+     * The channel's partition is dropped as a whole and a single tombstone is queued for the WAL,
+     * so the cost does not depend on how many items the channel held and the clear survives a crash
+     * before the next checkpoint.
      *
      * @param scopePrefix The scope name.
      * @param frequency   The frequency ID to clear.
      */
     public static void clearFrequency(String scopePrefix, int frequency) {
-        AEKey from = new AEKey(scopePrefix, frequency, new byte[0]);
-        AEKey to = new AEKey(scopePrefix, frequency + 1, new byte[0]);
-        NavigableMap<AEKey, StoredEntry> sub = dbMap.subMap(from, true, to, false);
-        int removed = sub.size();
-        sub.clear();
-        log("Cleared frequency %d for scope %s (%d entries)", frequency, scopePrefix, removed);
+        if (!ready) return;
+        ChannelKey channel = new ChannelKey(scopePrefix, frequency);
+        ChannelPartition removed = dropChannel(channel);
+        if (removed == null) return;
+        markChannelChanged(channel, null);
+        enqueueChange(ItemSlot.tombstone(removed));
+        log("Cleared frequency %d for scope %s (%d entries)", frequency, scopePrefix, removed.typeCount());
+    }
+
+    /**
+     * Removes a channel from memory and records it for the next checkpoint.
+     *
+     * @param channel The channel.
+     * @return The removed partition, or null if the channel held nothing.
+     */
+    private static ChannelPartition dropChannel(ChannelKey channel) {
+        ChannelPartition removed = partitions.remove(channel);
+        if (removed == null) return null;
+        removed.markDropped();
+        droppedChannels.add(channel);
+        dirty = true;
+        signalCommitThread();
+        return removed;
     }
 
     /**
@@ -155,9 +496,22 @@ public class EnderDBManager {
      * @return The number of unique item keys.
      */
     public static int getTypeCount(String scopePrefix, int freq) {
-        AEKey from = new AEKey(scopePrefix, freq, new byte[0]);
-        AEKey to = new AEKey(scopePrefix, freq + 1, new byte[0]);
-        return dbMap.subMap(from, true, to, false).size();
+        ChannelPartition partition = getPartition(scopePrefix, freq);
+        return partition == null ? 0 : partition.typeCount();
+    }
+
+    /**
+     * Adds the committed stacks of a channel to a counter. An unchanged channel is served from the view
+     * cached by its partition, so repeated storage rebuilds only copy a ready-made counter.
+     *
+     * @param scopePrefix The scope name.
+     * @param freq        The frequency ID.
+     * @param out         The counter to add to.
+     */
+    public static void addAvailableStacks(String scopePrefix, int freq, KeyCounter out) {
+        ChannelPartition partition = getPartition(scopePrefix, freq);
+        if (partition == null || partition.isEmpty()) return;
+        out.addAll(partition.availableStacks());
     }
 
     /**
@@ -168,22 +522,48 @@ public class EnderDBManager {
      * @return A list of matching cache entries.
      */
     public static List<AEKeyCacheEntry> queryItemsByFrequency(String scopePrefix, int freq) {
-        AEKey from = new AEKey(scopePrefix, freq, new byte[0]);
-        AEKey to = new AEKey(scopePrefix, freq + 1, new byte[0]);
+        ChannelPartition partition = getPartition(scopePrefix, freq);
+        if (partition == null || partition.isEmpty()) return Collections.emptyList();
 
-        NavigableMap<AEKey, StoredEntry> subMap = dbMap.subMap(from, true, to, false);
+        ChannelQuery memo = queryMemo.get(partition.channel());
+        long epoch = partition.epoch();
+        if (memo != null && memo.partition() == partition && memo.epoch() == epoch) {
+            return memo.entries();
+        }
+        List<AEKeyCacheEntry> entries = scanEntries(partition, scopePrefix, freq);
+        // Tagged with the epoch read before the scan, like the partition's stack view.
+        queryMemo.put(partition.channel(), new ChannelQuery(partition, epoch, entries));
+        return entries;
+    }
 
+    /**
+     * A channel query result, valid while the partition it was read from stays at the same epoch.
+     * The memo is cleared at the end of every tick so it never outgrows the channels queried in one tick.
+     *
+     * @param partition The partition that was scanned; a cleared and recreated channel never matches.
+     * @param epoch     The partition's epoch before the scan.
+     * @param entries   The unmodifiable result.
+     */
+    private record ChannelQuery(ChannelPartition partition, long epoch, List<AEKeyCacheEntry> entries) {}
+
+    /**
+     * Reads the entries of a channel. Channels below the calibrated cutoff are scanned inline on the calling
+     * thread; only large ones are split on the compute pool.
+     */
+    private static List<AEKeyCacheEntry> scanEntries(ChannelPartition partition, String scopePrefix, int freq) {
+        if (!EnderExecutors.shouldSplit(partition.typeCount())) {
+            List<AEKeyCacheEntry> entries = new ArrayList<>(partition.typeCount());
+            for (ItemSlot slot : partition.slots().values()) {
+                AEKeyCacheEntry entry = toCacheEntry(slot, scopePrefix, freq);
+                if (entry != null) entries.add(entry);
+            }
+            return Collections.unmodifiableList(entries);
+        }
         try {
-            return SHARED_PARALLEL_POOL.submit(() ->
-                    subMap.entrySet()
+            return EnderExecutors.compute().submit(() ->
+                    partition.slots().values()
                             .parallelStream()
-                            .map(entry -> {
-                                AEItemKey aeKey = entry.getValue().aeKey();
-                                if (aeKey != null) {
-                                    return new AEKeyCacheEntry(entry.getKey(), aeKey, entry.getValue().count());
-                                }
-                                return null; // skip invalids
-                            })
+                            .map(slot -> toCacheEntry(slot, scopePrefix, freq))
                             .filter(Objects::nonNull)
                             .toList()
             ).get();
@@ -193,46 +573,53 @@ public class EnderDBManager {
         }
     }
 
-
-    public static long getTotalItemCount(String scopePrefix, int frequency) {
-        String key = scopePrefix + "|" + frequency;
-        CachedCount cached = itemCountCache.get(key);
-        long now = System.currentTimeMillis();
-
-        if (cached == null || (now - cached.timestamp) >= 1000) {
-            long newCount = calculateTotalItemCount(scopePrefix, frequency);
-            itemCountCache.put(key, new CachedCount(newCount, now));
-            log("Recalculated item count: scope=%s freq=%d total=%d", scopePrefix, frequency, newCount);
-            return newCount;
+    private static @Nullable AEKeyCacheEntry toCacheEntry(ItemSlot slot, String scopePrefix, int freq) {
+        long count = slot.count();
+        AEItemKey aeKey = count > 0 ? slot.itemKey().get() : null;
+        if (aeKey != null) {
+            return new AEKeyCacheEntry(new AEKey(scopePrefix, freq, slot.itemId()), aeKey, count);
         }
-
-        log("Using cached item count: scope=%s freq=%d total=%d", scopePrefix, frequency, cached.count);
-        return cached.count;
+        return null; // skip invalids and emptied slots
     }
 
-    private static long calculateTotalItemCount(String scopePrefix, int frequency) {
-        List<AEKeyCacheEntry> entries = queryItemsByFrequency(scopePrefix, frequency);
-        try {
-            return SHARED_PARALLEL_POOL.submit(() ->
-                    entries.parallelStream()
-                            .mapToLong(AEKeyCacheEntry::count)
-                            .sum()
-            ).get();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return 0L;
-        }
+
+    /**
+     * Gets the total number of items committed to a given frequency and scope.
+     * The total is maintained incrementally as WAL entries are applied, so this is a constant-time read.
+     *
+     * @param scopePrefix The scope name.
+     * @param frequency   The frequency ID.
+     * @return The summed count of all item types on the channel.
+     */
+    public static long getTotalItemCount(String scopePrefix, int frequency) {
+        ChannelPartition partition = getPartition(scopePrefix, frequency);
+        return partition == null ? 0L : partition.totalItemCount();
     }
 
+    /**
+     * Returns the most stored items of a channel, largest count first. Like {@link #queryItemsByFrequency},
+     * the sort only goes to the compute pool for channels above the calibrated cutoff.
+     *
+     * @param scopePrefix The scope name.
+     * @param frequency   The frequency ID.
+     * @param max         The maximum number of stacks.
+     * @return The stacks.
+     */
     public static List<ItemStack> getTopStacks(String scopePrefix, int frequency, int max) {
         List<AEKeyCacheEntry> entries = queryItemsByFrequency(scopePrefix, frequency);
-
+        if (entries.isEmpty() || max <= 0) return Collections.emptyList();
+        if (!EnderExecutors.shouldSplit(entries.size())) {
+            return entries.stream()
+                    .sorted(Comparator.comparingLong(AEKeyCacheEntry::count).reversed())
+                    .limit(max)
+                    .map(e -> e.aeKey().toStack((int) Math.min(e.count(), Integer.MAX_VALUE)))
+                    .toList();
+        }
         try {
-            return SHARED_PARALLEL_POOL.submit(() ->
-                    entries.stream()
+            return EnderExecutors.compute().submit(() ->
+                    entries.parallelStream()
                             .sorted(Comparator.comparingLong(AEKeyCacheEntry::count).reversed())
                             .limit(max)
-                            .parallel()
                             .map(e -> e.aeKey().toStack((int) Math.min(e.count(), Integer.MAX_VALUE)))
                             .toList()
             ).get();
@@ -242,187 +629,447 @@ public class EnderDBManager {
         }
     }
 
-    private record CachedCount(long count, long timestamp) {}
-
     /**
      * Commits the current state of the database to disk, flushing all in-memory changes.
+     * <p>
+     * Usually only the channels changed since the last checkpoint are written, into a new segment file
+     * referenced by the manifest. Once the segments add up to half of enderdrives.bin (or there are too
+     * many of them), enderdrives.bin is rewritten with every channel and the segments are dropped.
+     * <p>
+     * The WAL is rotated under the commit lock, which only takes as long as closing and renaming a file.
+     * The channels are then written from the live maps while WAL appends continue. They may include
+     * changes made after the rotation; those are also in the new WAL, and since WAL records store absolute
+     * counts, replaying them over the checkpoint gives the same result. Once the checkpoint is in place, the
+     * rotated WAL files are deleted.
      */
     public static void commitDatabase() {
-        try {
-            File temp = new File(dbFile.getAbsolutePath() + ".tmp");
-            try (DataOutputStream dos = new DataOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(temp), 1024 * 512))) {
-
-                // Collect entries in parallel and write sequentially
-                List<byte[]> records = parallelCall(() ->
-                        dbMap.entrySet().parallelStream().map(entry -> {
-                            try {
-                                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                                DataOutputStream tmpDos = new DataOutputStream(baos);
-                                AEKey key = entry.getKey();
-                                long count = entry.getValue().count();
-                                tmpDos.writeUTF(key.scope());
-                                tmpDos.writeInt(key.freq());
-                                tmpDos.writeInt(key.itemBytes().length);
-                                tmpDos.write(key.itemBytes());
-                                tmpDos.writeLong(count);
-                                tmpDos.close();
-                                return baos.toByteArray();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                                return null;
-                            }
-                        }).filter(Objects::nonNull).toList(), List.of()
-                );
-
-                for (byte[] record : records) {
-                    dos.write(record);
+        // Nothing to write to once the database is stopped, e.g. for a command still running during shutdown.
+        if (engine == null) return;
+        synchronized (checkpointLock) {
+            List<File> covered;
+            List<ChannelPartition> changed;
+            Set<ChannelKey> dropped;
+            synchronized (commitLock) {
+                try {
+                    covered = rotateWAL();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
                 }
+                // Cleared before the channels are read, so changes made while they are written mark them again.
+                dirty = false;
+                changed = partitions.values().stream().filter(ChannelPartition::isDirty).toList();
+                changed.forEach(ChannelPartition::markClean);
+                dropped = new HashSet<>(droppedChannels);
+                droppedChannels.removeAll(dropped);
             }
 
-            Files.move(temp.toPath(), dbFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            dirty = false;
-            log("Database committed successfully.");
-        } catch (IOException e) {
-            e.printStackTrace();
+            try {
+                if (shouldWriteFullCheckpoint()) {
+                    writeFullCheckpoint();
+                } else if (!changed.isEmpty() || !dropped.isEmpty()) {
+                    writeIncrementalCheckpoint(changed, dropped);
+                }
+            } catch (IOException | RuntimeException e) {
+                // The covered WALs are kept, and the channels are written again by the next checkpoint.
+                e.printStackTrace();
+                dirty = true;
+                changed.forEach(ChannelPartition::markDirty);
+                droppedChannels.addAll(dropped);
+                return;
+            }
+
+            for (File wal : covered) {
+                if (!wal.delete()) {
+                    log("Failed to delete WAL file %s", wal.getName());
+                }
+            }
+            lastDbCommitTime = System.currentTimeMillis();
+            totalCommits.incrementAndGet();
+        }
+    }
+
+    /**
+     * Decides whether the next checkpoint rewrites enderdrives.bin instead of adding a segment.
+     *
+     * @return true if there is no base file yet or the segments have grown too large.
+     */
+    private static boolean shouldWriteFullCheckpoint() {
+        if (!dbFile.exists()) return true;
+        SortedSet<Long> generations = manifest.generations();
+        if (generations.size() >= MAX_SEGMENTS) return true;
+        long segmentBytes = 0;
+        for (long generation : generations) {
+            segmentBytes += segmentFile(generation).length();
+        }
+        return segmentBytes > Math.max(dbFile.length() / 2, MIN_SEGMENT_BYTES_FOR_FULL);
+    }
+
+    /**
+     * Rewrites enderdrives.bin with every channel and resets the manifest.
+     * Segments are only deleted once the empty manifest is in place; until then the old manifest
+     * and segments still describe a state that the kept WAL files bring up to date.
+     *
+     * @throws IOException if the checkpoint cannot be written.
+     */
+    private static void writeFullCheckpoint() throws IOException {
+        File temp = new File(dbFile.getAbsolutePath() + ".tmp");
+        // One fixed list, since the writer walks it twice and the scope table must cover every channel written.
+        List<ChannelPartition> channels = List.copyOf(partitions.values());
+        SnapshotFormat.WriteStats stats = SnapshotFormat.write(temp, channels, compressSnapshots);
+        // Forced after the channels are read, so every id the file references can be resolved on load
+        // once the WAL files it covers are deleted.
+        ItemDictionary.sync();
+        Files.move(temp.toPath(), dbFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        SegmentManifest next = SegmentManifest.empty(manifest.nextGeneration());
+        next.write(manifestFile);
+        manifest = next;
+        deleteUnreferencedSegments();
+
+        lastCheckpoint = new CheckpointStats(true, channels.size(), stats);
+        log("Full checkpoint: %d records, %d bytes in %d ms, %d bytes allocated.",
+                stats.records(), stats.bytes(), stats.durationNanos() / 1_000_000, stats.allocatedBytes());
+    }
+
+    /**
+     * Writes the changed channels into a new segment file and points the manifest at it.
+     * Dropped channels are pointed at the same segment without records, which makes them empty on load.
+     *
+     * @param changed The channels changed since the last checkpoint.
+     * @param dropped The channels cleared since the last checkpoint.
+     * @throws IOException if the checkpoint cannot be written.
+     */
+    private static void writeIncrementalCheckpoint(List<ChannelPartition> changed, Set<ChannelKey> dropped) throws IOException {
+        long generation = manifest.nextGeneration();
+        File segment = segmentFile(generation);
+        File temp = new File(segment.getAbsolutePath() + ".tmp");
+        SnapshotFormat.WriteStats stats = SnapshotFormat.write(temp, changed, compressSnapshots);
+        ItemDictionary.sync();
+        Files.move(temp.toPath(), segment.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        Set<ChannelKey> channels = new HashSet<>(dropped);
+        for (ChannelPartition partition : changed) {
+            channels.add(partition.channel());
+        }
+        SegmentManifest next = manifest.withSegment(generation, channels);
+        next.write(manifestFile);
+        manifest = next;
+        deleteUnreferencedSegments();
+
+        lastCheckpoint = new CheckpointStats(false, channels.size(), stats);
+        log("Incremental checkpoint: %d channels, %d records, %d bytes in %d ms, %d bytes allocated.",
+                channels.size(), stats.records(), stats.bytes(), stats.durationNanos() / 1_000_000, stats.allocatedBytes());
+    }
+
+    private static File segmentFile(long generation) {
+        return new File(dbFile.getParentFile(), "enderdrives.seg." + generation);
+    }
+
+    private static List<File> listSegmentFiles() {
+        File[] segments = dbFile.getParentFile().listFiles((d, name) -> name.matches("enderdrives\\.seg\\.\\d+"));
+        return segments == null ? List.of() : Arrays.asList(segments);
+    }
+
+    private static long segmentGeneration(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * Deletes segment files that the manifest no longer references.
+     */
+    private static void deleteUnreferencedSegments() {
+        SortedSet<Long> referenced = manifest.generations();
+        for (File segment : listSegmentFiles()) {
+            if (!referenced.contains(segmentGeneration(segment)) && !segment.delete()) {
+                log("Failed to delete segment %s", segment.getName());
+            }
+        }
+    }
+
+// ==== Change Notifications ====
+
+    /**
+     * Subscribes to changes of a channel. Changes are coalesced and delivered at most once per server tick,
+     * on the server thread.
+     * Owners are held weakly, so the listener must not capture its owner; it receives it instead.
+     * A later subscription with the same owner replaces the earlier one.
+     *
+     * @param scopePrefix The scope name.
+     * @param freq        The frequency ID.
+     * @param owner       Identifies the subscriber, typically the mounted cell; it stays subscribed while reachable.
+     * @param listener    Called with the owner when the channel changed.
+     * @param <T>         The owner type.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> void subscribe(String scopePrefix, int freq, T owner, Consumer<? super T> listener) {
+        subscribers.computeIfAbsent(new ChannelKey(scopePrefix, freq), k -> Collections.synchronizedMap(new WeakHashMap<>()))
+                .put(owner, o -> listener.accept((T) o));
+    }
+
+    /**
+     * Records that a channel changed during the current tick. Changes from more than one origin in the
+     * same tick notify every subscriber.
+     *
+     * @param channel The channel.
+     * @param origin  The subscriber owner that made the change, or null if unknown.
+     */
+    private static void markChannelChanged(ChannelKey channel, @Nullable Object origin) {
+        if (!subscribers.containsKey(channel)) return;
+        changedChannels.merge(channel, origin == null ? ANY_ORIGIN : origin, (a, b) -> a == b ? a : ANY_ORIGIN);
+    }
+
+    /**
+     * Runs the end-of-tick work on the server thread: delivers change notifications and drops the query
+     * results memoized during the tick.
+     */
+    public static void onServerTickEnd() {
+        dispatchChannelChanges();
+        queryMemo.clear();
+    }
+
+    /**
+     * Notifies the subscribers of every channel changed since the last call, except the owner that made
+     * all of a channel's changes.
+     */
+    private static void dispatchChannelChanges() {
+        if (changedChannels.isEmpty()) return;
+        for (ChannelKey channel : changedChannels.keySet()) {
+            Object origin = changedChannels.remove(channel);
+            Map<Object, Consumer<Object>> channelSubscribers = subscribers.get(channel);
+            if (origin == null || channelSubscribers == null) continue;
+            List<Map.Entry<Object, Consumer<Object>>> targets;
+            synchronized (channelSubscribers) {
+                targets = new ArrayList<>(channelSubscribers.size());
+                for (Map.Entry<Object, Consumer<Object>> entry : channelSubscribers.entrySet()) {
+                    if (entry.getKey() != origin) {
+                        targets.add(Map.entry(entry.getKey(), entry.getValue()));
+                    }
+                }
+            }
+            for (Map.Entry<Object, Consumer<Object>> target : targets) {
+                try {
+                    target.getValue().accept(target.getKey());
+                } catch (Exception e) {
+                    LOGGER.error("Channel change listener failed for {}: ", channel, e);
+                }
+            }
         }
     }
 
 // ==== Public Getters / Stats ====
 
     public static AtomicLong getTotalItemsWritten() { return totalItemsWritten; }
+    public static long getTotalWalBytes() { return totalWalBytes.get(); }
     public static AtomicLong getTotalCommits() { return totalCommits; }
-    public static int getWalQueueSize() { return walQueue.size(); }
-    public static int getDatabaseSize() { return dbMap.size(); }
+    public static int getWalQueueSize() { return walQueuedOps.get(); }
+    public static int getDatabaseSize() {
+        int size = 0;
+        for (ChannelPartition partition : partitions.values()) {
+            size += partition.typeCount();
+        }
+        return size;
+    }
+    public static int getChannelCount() { return partitions.size(); }
+    public static int getDictionarySize() { return ItemDictionary.size(); }
     public static long getDatabaseFileSizeBytes() { return dbFile.exists() ? dbFile.length() : 0; }
+    public static CheckpointStats getLastCheckpointStats() { return lastCheckpoint; }
+    public static int getSegmentCount() { return manifest.generations().size(); }
+    public static WalDurability getWalDurability() { return walDurability; }
 
 // ==== Background Thread Handling ====
 
     /**
      * Starts the background commit thread that flushes WAL entries and periodically writes the database to disk.
+     *
+     * @param owner The engine the thread belongs to; the thread exits once that engine is stopped.
      */
-    private static void startBackgroundCommit() {
-        Thread t = new Thread(() -> {
-            List<byte[]> batch = new ArrayList<>();
-            while (running) {
-                try {
-                    flushDeltaBuffer();
-
-                    int walSizeBytes = walQueue.stream().mapToInt(arr -> arr.length + Long.BYTES + Integer.BYTES).sum();
-                    int dynamicBatchSize = Math.min(50_000, Math.max(1_000, walQueue.size() / 10));
+    private static void startBackgroundCommit(Engine owner) {
+        Thread t = EnderExecutors.newDedicatedThread("EnderDB-CommitThread", () -> runCommitLoop(owner));
+        owner.commitThread = t;
+        t.start();
+    }
 
-                    if (walSizeBytes <= 5 * 1024 * 1024) {
-                        walQueue.drainTo(batch);
-                    } else {
-                        walQueue.drainTo(batch, dynamicBatchSize);
+    /**
+     * Body of the commit thread. It sleeps until it is signalled or the next deadline passes:
+     * <ul>
+     *   <li>the change log is written to the WAL once the min commit interval has passed since the last write,
+     *       or immediately once it holds {@link #COMMIT_RECORDS_THRESHOLD} entries;</li>
+     *   <li>a checkpoint is queued once the database is dirty and the min DB commit interval has passed;</li>
+     *   <li>in {@link WalDurability#INTERVAL_FSYNC} mode, written WAL records are forced once the fsync interval
+     *       has passed.</li>
+     * </ul>
+     * With nothing pending the thread parks without a timeout. A max interval configured below its min
+     * interval takes precedence, so no separate wakeup is needed for the max intervals.
+     */
+    private static void runCommitLoop(Engine owner) {
+        List<WalFormat.Update> batch = new ArrayList<>();
+        long commitInterval = Math.min(minCommit, maxCommit);
+        long dbCommitInterval = Math.min(minDbCommit, maxDbCommit);
+        while (owner.running) {
+            try {
+                commitSignalled.set(false);
+
+                long now = System.currentTimeMillis();
+                if (!changeLog.isEmpty() && (walQueuedOps.get() >= COMMIT_RECORDS_THRESHOLD
+                        || now - lastCommitTime >= commitInterval)) {
+                    drainChangeLog(batch, MAX_BATCH_RECORDS);
+                    synchronized (commitLock) {
+                        writeWALBatch(batch);
                     }
+                    lastCommitTime = now;
+                    log("Committed %d WAL entries. TotalItems=%d", batch.size(), totalItemsWritten);
+                    batch.clear();
+                    continue;
+                }
 
-                    long now = System.currentTimeMillis();
-
-                    boolean minIntervalElapsed = now - lastCommitTime >= minCommit ;
-                    boolean maxIntervalElapsed = now - lastCommitTime >= maxCommit ;
-
-                    boolean shouldCommit = (!batch.isEmpty() && minIntervalElapsed)
-                            || walQueue.size() >= dynamicBatchSize * 2
-                            || maxIntervalElapsed;
-
-                    if (shouldCommit) {
-                        synchronized (commitLock) {
-                            for (byte[] entry : batch) {
-                                walWriter.writeInt(entry.length);
-                                walWriter.write(entry);
-                                walWriter.writeLong(checksum(entry));
-                                totalItemsWritten.incrementAndGet();
-                                lastCommitTime = now;
-                            }
-                            walWriter.flush();
-
-                            if (!batch.isEmpty()) {
-                                log("Committed %d WAL entries. TotalItems=%d", batch.size(), totalItemsWritten);
-                            }
-                            boolean minDbCommitElapsed = now - lastDbCommitTime >= minDbCommit ;
-                            boolean maxDbCommitElapsed = now - lastDbCommitTime >= maxDbCommit ;
-                            if (dirty && (batch.size() > 1000 || maxDbCommitElapsed || minDbCommitElapsed)) {
-                                commitDatabase();
-                                truncateCurrentWAL();
-                                lastDbCommitTime = now;
-                                totalCommits.incrementAndGet();
-                            }
-                        }
-                        batch.clear();
-                    }
+                if (dirty && !checkpointQueued.get() && now - lastDbCommitTime >= dbCommitInterval) {
+                    requestCheckpoint();
+                }
 
-                    long lastReplayCheck = System.currentTimeMillis();
-                    final long REPLAY_IDLE_INTERVAL_MS = 10_000;
-                    if (walQueue.isEmpty()) {
-                        if (now - lastReplayCheck >= REPLAY_IDLE_INTERVAL_MS) {
-                            lastReplayCheck = now;
-                            try {
-                                File dir = currentWAL.getParentFile();
-                                File[] rotatedWALs = dir.listFiles((d, name) -> name.matches("enderdrives\\.wal\\.\\d+"));
-                                if (rotatedWALs != null && rotatedWALs.length > 0) {
-                                    Arrays.sort(rotatedWALs, Comparator.comparing(File::getName));
-                                    for (File wal : rotatedWALs) {
-                                        if (wal.length() > 0) {
-                                            log("Idle Replay: Processing %s", wal.getName());
-                                            replayAndDeleteWAL(wal);
-                                        }
-                                    }
-                                }
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }
+                long syncDeadline;
+                synchronized (commitLock) {
+                    if (wal.syncDeadlineNanos() <= System.nanoTime()) {
+                        // The WAL is about to be forced, so the ids its records use must be on disk first.
+                        ItemDictionary.sync();
                     }
+                    wal.syncIfDue();
+                    syncDeadline = wal.syncDeadlineNanos();
+                }
 
-                    Thread.sleep(5);
-
-                } catch (Exception e) {
-                    e.printStackTrace();
+                long deadline = Long.MAX_VALUE;
+                if (!changeLog.isEmpty()) {
+                    deadline = lastCommitTime + commitInterval;
+                }
+                if (dirty && !checkpointQueued.get()) {
+                    deadline = Math.min(deadline, lastDbCommitTime + dbCommitInterval);
                 }
+                if (syncDeadline != Long.MAX_VALUE) {
+                    long syncInMs = Math.max(1L, (syncDeadline - System.nanoTime() + 999_999L) / 1_000_000L);
+                    deadline = Math.min(deadline, System.currentTimeMillis() + syncInMs);
+                }
+                if (commitSignalled.get() || !owner.running) {
+                    continue;
+                }
+                if (deadline == Long.MAX_VALUE) {
+                    LockSupport.park();
+                } else {
+                    long waitMs = deadline - System.currentTimeMillis();
+                    if (waitMs > 0) {
+                        LockSupport.parkNanos(waitMs * 1_000_000L);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                batch.clear();
+                // Avoid spinning on a persistent I/O error.
+                LockSupport.parkNanos(100_000_000L);
             }
-        }, "EnderDB-CommitThread");
+        }
+    }
 
-        t.setDaemon(true);
-        t.start();
+    /**
+     * Wakes the commit thread so it re-evaluates its work. Cheap when a wakeup is already pending.
+     */
+    private static void signalCommitThread() {
+        if (commitSignalled.get() || !commitSignalled.compareAndSet(false, true)) return;
+        Engine current = engine;
+        Thread t = current == null ? null : current.commitThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Queues a checkpoint on the EnderDrives flush lane unless one is already queued or running,
+     * so the commit thread keeps appending to the WAL while the snapshot is written.
+     */
+    private static void requestCheckpoint() {
+        Engine current = engine;
+        if (current == null || !checkpointQueued.compareAndSet(false, true)) return;
+        synchronized (current) {
+            if (!current.running) {
+                checkpointQueued.set(false);
+                return;
+            }
+            try {
+                current.checkpoint = EnderExecutors.submit(EnderExecutors.Lane.FLUSH, () -> {
+                    try {
+                        commitDatabase();
+                    } finally {
+                        checkpointQueued.set(false);
+                        // Changes made while the checkpoint ran need a new deadline.
+                        signalCommitThread();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                checkpointQueued.set(false);
+            }
+        }
     }
 
 // ==== WAL Handling & Processing ====
 
     /**
-     * Flushes the delta buffer into the WAL queue, preparing it for commit.
+     * Moves queued changes into a WAL batch. Each slot contributes its count at the time it is drained,
+     * so a slot changed many times since it was queued costs one record. Slots of dropped channels are
+     * skipped; the channel's tombstone covers them.
+     *
+     * @param batch Receives the updates, in queue order.
+     * @param max   The maximum number of queue entries to take.
      */
-    public static void flushDeltaBuffer() {
-        List<Map.Entry<AEKey, Long>> snapshot = new ArrayList<>(deltaBuffer.entrySet());
-        deltaBuffer.clear();
+    private static void drainChangeLog(List<WalFormat.Update> batch, int max) {
+        int drained = 0;
+        ItemSlot slot;
+        while (drained < max && (slot = changeLog.poll()) != null) {
+            drained++;
+            ChannelKey channel = slot.partition().channel();
+            if (slot.isTombstone()) {
+                batch.add(WalFormat.Update.dropChannel(channel.scope(), channel.freq()));
+                continue;
+            }
+            // Released before the count is read, so a change made after the read queues the slot again.
+            slot.clearLogged();
+            if (slot.partition().isDropped()) continue;
+            batch.add(new WalFormat.Update(channel.scope(), channel.freq(), slot.itemId(), slot.count()));
+        }
+        walQueuedOps.addAndGet(-drained);
+    }
 
-        List<byte[]> entries = parallelCall(() ->
-                snapshot.parallelStream()
-                        .filter(e -> e.getValue() != 0)
-                        .map(entry -> {
-                            try {
-                                AEKey key = entry.getKey();
-                                long delta = entry.getValue();
-                                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                                DataOutputStream dos = new DataOutputStream(baos);
-                                dos.writeUTF(key.scope());
-                                dos.writeInt(key.freq());
-                                dos.writeInt(key.itemBytes().length);
-                                dos.write(key.itemBytes());
-                                dos.writeLong(delta);
-                                dos.close();
-                                return baos.toByteArray();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                                return null;
-                            }
-                        }).filter(Objects::nonNull)
-                        .toList(), List.of()
-        );
+    /**
+     * Encodes a batch of queued updates into one WAL frame and commits it through the WAL engine as a single write.
+     * The caller must hold the commit lock.
+     *
+     * @param batch Queued updates, in the order they were applied.
+     * @throws IOException if writing fails.
+     */
+    private static void writeWALBatch(List<WalFormat.Update> batch) throws IOException {
+        if (batch.isEmpty()) return;
+        // Ids referenced by this batch must be resolvable before the batch is durable.
+        if (walDurability == WalDurability.FSYNC_PER_BATCH) {
+            ItemDictionary.sync();
+        } else {
+            ItemDictionary.flush();
+        }
+        ByteBuffer frame = walEncoder.encode(batch);
+        int bytes = frame.remaining();
+        wal.commit(wal.append(frame, batch.size()));
+        totalItemsWritten.addAndGet(batch.size());
+        totalWalBytes.addAndGet(bytes);
+    }
 
-        for (byte[] walEntry : entries) {
-            walQueue.add(walEntry);
-            applyBinaryOperation(walEntry);
+    /**
+     * Queues a changed slot or a channel tombstone on the change log and wakes the commit thread when the
+     * log becomes non-empty or reaches the commit threshold.
+     *
+     * @param slot The slot.
+     */
+    private static void enqueueChange(ItemSlot slot) {
+        changeLog.add(slot);
+        int queued = walQueuedOps.incrementAndGet();
+        if (queued == 1 || queued == COMMIT_RECORDS_THRESHOLD) {
+            signalCommitThread();
         }
     }
 
@@ -430,86 +1077,243 @@ public class EnderDBManager {
     /**
      * Applies a binary WAL entry to the in-memory database map.
      *
-     * @param data Serialized WAL operation.
+     * @param data   Serialized WAL operation.
+     * @param format The format of the file the entry was read from.
      */
-    private static void applyBinaryOperation(byte[] data) {
+    private static void applyBinaryOperation(byte[] data, int format) {
         try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data))) {
             String scopePrefix = dis.readUTF();
             int freq = dis.readInt();
-            int keyLen = dis.readInt();
-            byte[] keyBytes = new byte[keyLen];
-            dis.readFully(keyBytes);
-            long delta = dis.readLong();
-            AEKey key = new AEKey(scopePrefix, freq, keyBytes);
-            long oldVal = dbMap.getOrDefault(key, new StoredEntry(0L, null)).count();
-            long newVal = oldVal + delta;
-            if (newVal <= 0) {
-                dbMap.remove(key);
+            int itemId;
+            if (format == WAL_FORMAT_LEGACY) {
+                byte[] keyBytes = new byte[dis.readInt()];
+                dis.readFully(keyBytes);
+                itemId = ItemDictionary.intern(keyBytes);
             } else {
-                AEItemKey aeKey = null;
-                try {
-                    ItemStack stack = deserializeItemStackFromBytes(keyBytes);
-                    if (!stack.isEmpty()) {
-                        aeKey = AEItemKey.of(stack);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-
-                if (aeKey != null) {
-                    dbMap.put(key, new StoredEntry(newVal, aeKey));
-                } else {
-                    dbMap.put(key, new StoredEntry(newVal, null));
-                }
+                itemId = dis.readInt();
             }
-            log("Applying WAL: key=%s delta=%d old=%d new=%d", key, delta, oldVal, newVal);
-            dirty = true;
+            updateCount(getOrCreatePartition(scopePrefix, freq), itemId, dis.readLong(), format == WAL_FORMAT_ABSOLUTE, false);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Truncates (clears and resets) the current WAL file to a clean state.
+     * Changes the count of an item with a compare-and-set on its slot. A negative delta is clamped at the
+     * stored count. A slot that drops to 0 is retired; a writer that finds its slot retired retries on a new one.
+     *
+     * @param partition The channel.
+     * @param itemId    The item dictionary id.
+     * @param value     The delta to add, or the new count if {@code absolute} is set.
+     * @param absolute  Whether {@code value} replaces the count instead of being added to it.
+     * @param journal   Whether to queue the slot on the change log for the WAL.
+     * @return The change actually applied to the count.
      */
-    private static void truncateCurrentWAL() {
-        try {
-            closeWALStream();
-            new FileOutputStream(currentWAL).close();
-            openWALStream();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private static long updateCount(ChannelPartition partition, int itemId, long value, boolean absolute, boolean journal) {
+        return updateCount(partition, itemId, value, absolute, journal, false);
+    }
+
+    /**
+     * Changes the count of an item, consuming or releasing a type reserved with {@link ChannelPartition#tryAdmitType}.
+     *
+     * @param partition    The channel.
+     * @param itemId       The item dictionary id.
+     * @param value        The delta to add, or the new count if {@code absolute} is set.
+     * @param absolute     Whether {@code value} replaces the count instead of being added to it.
+     * @param journal      Whether to queue the slot on the change log for the WAL.
+     * @param typeAdmitted Whether a type was reserved for this change.
+     * @return The change actually applied to the count.
+     */
+    private static long updateCount(ChannelPartition partition, int itemId, long value, boolean absolute, boolean journal, boolean typeAdmitted) {
+        while (true) {
+            ItemSlot slot = partition.slot(itemId);
+            if (slot == null) {
+                // Nothing stored, so there is nothing to remove or zero.
+                if (value <= 0) {
+                    if (typeAdmitted) partition.releaseType();
+                    return 0L;
+                }
+                slot = partition.getOrCreateSlot(itemId);
+            }
+            // Marked before the change is made or journaled, and always written: a checkpoint clears the flags
+            // after rotating the WAL, so a change in the rotated WAL was made after its flag was set and the
+            // channel is written, and a change made after the clear is in the new WAL with its channel marked.
+            partition.markDirty();
+            dirty = true;
+            long oldCount = absolute ? slot.set(value) : slot.add(value);
+            if (oldCount == ItemSlot.RETIRED) {
+                partition.unlink(slot);
+                continue;
+            }
+            long newCount = Math.max(0L, absolute ? value : oldCount + value);
+            if (newCount == oldCount) {
+                if (typeAdmitted) partition.releaseType();
+                return 0L;
+            }
+            partition.onCountChanged(oldCount, newCount, typeAdmitted);
+            partition.markChanged();
+            if (journal && slot.markLogged()) {
+                enqueueChange(slot);
+            }
+            if (newCount == 0) {
+                partition.retireIfEmpty(slot);
+            }
+            log("Applying change: channel=%s item=#%d old=%d new=%d", partition.channel(), itemId, oldCount, newCount);
+            return newCount - oldCount;
         }
     }
 
     /**
-     * Replays the current WAL and any rotated WAL files, applying their entries to memory.
+     * Result of the WAL replay at startup.
+     *
+     * @param files   The replayed files, oldest first.
+     * @param updates The number of records applied.
+     */
+    private record ReplayStats(List<File> files, long updates) {}
+
+    /**
+     * Replays any rotated WAL files and then the current WAL, applying their entries to memory.
+     * Records of current-format files are collected and applied per channel in parallel, keeping the order
+     * of records within a channel; a file of an older format first applies everything collected before it.
+     * The files are left on disk until the recovered state has been checkpointed.
      *
-     * @throws IOException if file access fails.
+     * @param pool The pool to apply collected records on.
+     * @return The replayed files and the number of records applied.
      */
-    private static void replayWALs() throws IOException {
+    private static ReplayStats replayWALs(ForkJoinPool pool) {
+        List<File> replayed = new ArrayList<>(listRotatedWALs());
         if (currentWAL.exists()) {
-            replayAndDeleteWAL(currentWAL);
+            replayed.add(currentWAL);
         }
-        File dir = currentWAL.getParentFile();
-        File[] rotatedWALs = dir.listFiles((d, name) ->
-                name.startsWith("enderdrives.wal.") && name.matches(".*\\.\\d+$"));
-        if (rotatedWALs != null) {
-            Arrays.sort(rotatedWALs);
-            for (File rotated : rotatedWALs) {
-                replayAndDeleteWAL(rotated);
+        List<WalFormat.Update> pending = new ArrayList<>();
+        long updates = 0;
+        for (File wal : replayed) {
+            updates += replayWAL(wal, pending, pool);
+        }
+        applyReplayedUpdates(pending, pool);
+        return new ReplayStats(replayed, updates);
+    }
+
+    /**
+     * Applies collected absolute-count records and channel drops. Records are split into lanes by channel so every
+     * channel is updated by exactly one task, in file order; small batches are applied on the calling thread.
+     *
+     * @param updates The records, in file order. Cleared afterwards.
+     * @param pool    The pool to run the lanes on.
+     */
+    private static void applyReplayedUpdates(List<WalFormat.Update> updates, ForkJoinPool pool) {
+        if (updates.isEmpty()) return;
+        int lanes = pool.getParallelism();
+        if (lanes <= 1 || updates.size() < PARALLEL_REPLAY_MIN_UPDATES) {
+            for (WalFormat.Update update : updates) {
+                applyReplayedUpdate(update);
             }
+            updates.clear();
+            return;
+        }
+        List<List<WalFormat.Update>> byLane = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            byLane.add(new ArrayList<>(updates.size() / lanes + 16));
+        }
+        for (WalFormat.Update update : updates) {
+            int lane = Math.floorMod(new ChannelKey(update.scope(), update.freq()).hashCode(), lanes);
+            byLane.get(lane).add(update);
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(lanes);
+        for (List<WalFormat.Update> lane : byLane) {
+            if (lane.isEmpty()) continue;
+            tasks.add(pool.submit(() -> {
+                for (WalFormat.Update update : lane) {
+                    applyReplayedUpdate(update);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        updates.clear();
+    }
+
+    private static void applyReplayedUpdate(WalFormat.Update update) {
+        if (update.isChannelDrop()) {
+            dropChannel(new ChannelKey(update.scope(), update.freq()));
+        } else {
+            updateCount(getOrCreatePartition(update.scope(), update.freq()), update.itemId(), update.count(), true, false);
         }
-        truncateCurrentWAL();
     }
 
     /**
-     * Replays a specific WAL file and deletes it after successful processing.
+     * Lists the rotated WAL files, oldest first.
+     *
+     * @return The rotated files.
+     */
+    private static List<File> listRotatedWALs() {
+        File[] rotatedWALs = currentWAL.getParentFile().listFiles((d, name) -> name.matches("enderdrives\\.wal\\.\\d+"));
+        if (rotatedWALs == null) return List.of();
+        return Arrays.stream(rotatedWALs)
+                .sorted(Comparator.comparingLong(EnderDBManager::rotatedWALSequence))
+                .toList();
+    }
+
+    private static long rotatedWALSequence(File wal) {
+        String name = wal.getName();
+        return Long.parseLong(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * Closes the current WAL, renames it to the next rotated WAL name and opens a new one.
+     * The caller must hold the commit lock.
+     *
+     * @return Every rotated WAL file, including ones left behind by earlier failed checkpoints.
+     * @throws IOException if the WAL could not be rotated. The current WAL is reopened in that case.
+     */
+    private static List<File> rotateWAL() throws IOException {
+        try {
+            closeWALStream();
+        } catch (IOException e) {
+            // The checkpoint that rotates the WAL covers whatever the WAL failed to persist.
+            LOGGER.warn("Closing the WAL before rotation failed: {}", e.toString());
+        }
+        try {
+            long sequence = System.currentTimeMillis();
+            for (File rotated : listRotatedWALs()) {
+                sequence = Math.max(sequence, rotatedWALSequence(rotated) + 1);
+            }
+            File target = new File(currentWAL.getAbsolutePath() + "." + sequence);
+            Files.move(currentWAL.toPath(), target.toPath());
+        } finally {
+            openWALStream();
+        }
+        return listRotatedWALs();
+    }
+
+    /**
+     * Replays a specific WAL file. Current files ({@link WalFormat}) and v2 files store the absolute count of
+     * an item in every record, so replaying a record that is already reflected in the snapshot does not change
+     * anything. v1 files store deltas; files without a header additionally store the raw
+     * item bytes instead of a dictionary id, and their items are interned while replaying.
      *
      * @param walFile The WAL file to replay.
+     * @param pending Collects the records of current-format files; applied before an older file is replayed.
+     * @param pool    The pool to apply collected records on.
+     * @return The number of records read.
      */
-    private static void replayAndDeleteWAL(File walFile) {
-        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(walFile)))) {
+    private static long replayWAL(File walFile, List<WalFormat.Update> pending, ForkJoinPool pool) {
+        if (walFile.length() == 0) return 0;
+        long records = 0;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(walFile), 256 * 1024))) {
+            int format = readWALFormat(dis);
+            if (format == WAL_FORMAT_COMPACT) {
+                int before = pending.size();
+                int damaged = WalFormat.read(dis, walFile.getName(),
+                        (scope, freq, itemId, count) -> pending.add(new WalFormat.Update(scope, freq, itemId, count)));
+                if (damaged > 0) {
+                    LOGGER.warn("Skipped {} damaged batch(es) while replaying {}", damaged, walFile.getName());
+                }
+                return pending.size() - before;
+            }
+            applyReplayedUpdates(pending, pool);
+            LOGGER.info("Replaying WAL file {} written by an older version.", walFile.getName());
             while (true) {
                 try {
                     int length = dis.readInt();
@@ -521,86 +1325,218 @@ public class EnderDBManager {
                         continue;
                     }
                     log("Replaying record from %s: data length=%d", walFile.getName(), length);
-                    applyBinaryOperation(data);
+                    applyBinaryOperation(data, format);
+                    records++;
                 } catch (EOFException eof) {
                     break;
                 }
             }
-            if (walFile.delete()) {
-                log("Deleted WAL file %s", walFile.getName());
-            } else {
-                log("Failed to delete WAL file %s", walFile.getName());
-            }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return records;
+    }
+
+    /**
+     * Persists the state recovered at startup and drops the WAL files it came from.
+     * Once the snapshot holds everything, item ids that no channel references any more are
+     * removed from the dictionary. If the snapshot cannot be written, the current WAL is rotated
+     * instead so it is replayed again on the next start.
+     *
+     * @param replayed The WAL files replayed during startup.
+     */
+    private static void checkpointAfterRecovery(List<File> replayed) {
+        if (dirty) {
+            try {
+                writeFullCheckpoint();
+            } catch (IOException e) {
+                LOGGER.error("Failed to checkpoint recovered database, keeping WAL files for the next start: ", e);
+                if (currentWAL.exists() && currentWAL.length() > 0) {
+                    File rotated = new File(currentWAL.getAbsolutePath() + "." + System.currentTimeMillis());
+                    if (!currentWAL.renameTo(rotated)) {
+                        LOGGER.error("Failed to rotate {}", currentWAL.getName());
+                    }
+                }
+                return;
+            }
+            dirty = false;
+            droppedChannels.clear();
+            partitions.values().forEach(ChannelPartition::markClean);
+        }
+        for (File wal : replayed) {
+            if (wal.delete()) {
+                log("Deleted WAL file %s", wal.getName());
+            } else {
+                log("Failed to delete WAL file %s", wal.getName());
+            }
+        }
+        ItemDictionary.compact(collectLiveItemIds());
+    }
+
+    private static BitSet collectLiveItemIds() {
+        BitSet live = new BitSet();
+        for (ChannelPartition partition : partitions.values()) {
+            for (Integer itemId : partition.slots().keySet()) {
+                live.set(itemId);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Reads the header of a WAL file. Headerless files are rewound so their first record can be read.
+     *
+     * @param dis The stream positioned at the start of the file.
+     * @return One of the WAL_FORMAT constants.
+     * @throws IOException if reading fails.
+     */
+    private static int readWALFormat(DataInputStream dis) throws IOException {
+        dis.mark(Integer.BYTES);
+        try {
+            int magic = dis.readInt();
+            if (magic == WalFormat.MAGIC) return WAL_FORMAT_COMPACT;
+            if (magic == WAL_MAGIC_V2) return WAL_FORMAT_ABSOLUTE;
+            if (magic == WAL_MAGIC_V1) return WAL_FORMAT_DELTA;
+        } catch (EOFException ignored) {
+        }
+        dis.reset();
+        return WAL_FORMAT_LEGACY;
     }
 
 // ==== File & Stream Management ====
 
     /**
-     * Opens the WAL stream for appending new entries.
+     * Opens the WAL engine for appending new entries, writing the format header to a fresh file.
      *
      * @throws IOException if opening fails.
      */
     private static void openWALStream() throws IOException {
-        walFileStream = new FileOutputStream(currentWAL, true);
-        walWriter = new DataOutputStream(new BufferedOutputStream(walFileStream));
+        WalEngine engine = WalEngine.open(currentWAL, walDurability, walFsyncInterval);
+        if (engine.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(WalFormat.MAGIC).flip();
+            engine.commit(engine.append(header, 0));
+        } else if (!hasCompactHeader(currentWAL)) {
+            // Appending v3 frames to a file of another format would make it unreadable.
+            engine.close();
+            Files.move(currentWAL.toPath(), new File(currentWAL.getAbsolutePath() + "." + System.currentTimeMillis()).toPath());
+            openWALStream();
+            return;
+        }
+        wal = engine;
+    }
+
+    private static boolean hasCompactHeader(File file) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+            return dis.readInt() == WalFormat.MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
     }
 
     /**
-     * Closes the current WAL output stream.
+     * Commits and closes the current WAL. Unless the durability mode is {@link WalDurability#ASYNC},
+     * the file is forced first.
      *
-     * @throws IOException if closing fails.
+     * @throws IOException if the final write fails.
      */
     private static void closeWALStream() throws IOException {
-        walWriter.close();
-        walFileStream.close();
+        if (walDurability != WalDurability.ASYNC) {
+            ItemDictionary.sync();
+        }
+        wal.close();
     }
 
     /**
-     * Loads the database from disk into memory, if the file exists.
+     * Loads the database from disk into memory: enderdrives.bin first, then every segment the manifest
+     * references, each supplying the channels that point at it.
+     * Files written by older versions are marked for rewriting in the current format, and a file
+     * with damaged blocks is copied aside before the next checkpoint replaces it.
+     * An unreadable manifest fails the load rather than dropping the segments it refers to.
      *
+     * @param pool The pool to decode snapshot blocks on.
+     * @return The number of records read.
      * @throws IOException if reading fails.
      */
-    private static void loadDatabase() throws IOException {
+    private static long loadDatabase(ForkJoinPool pool) throws IOException {
+        long records = 0;
+        partitions.clear();
+        try {
+            manifest = SegmentManifest.read(manifestFile);
+        } catch (IOException e) {
+            // Without the manifest it is unknown which segments hold the newest data, and the WALs covering
+            // them are gone. Loading enderdrives.bin alone would roll those channels back and then delete
+            // the segments as unreferenced, so the load fails and every file stays as it is.
+            throw new IOException("Could not read " + manifestFile.getName() + "; the segment files were left untouched", e);
+        }
+
         if (!dbFile.exists()) {
             LOGGER.info("No database file found.");
-            return;
+        } else {
+            SnapshotFormat.LoadResult result = loadFile(dbFile, null, pool);
+            records += result.records();
+            LOGGER.info("Loaded {} database records from format v{}.", result.records(), result.version());
+            if (result.version() < SnapshotFormat.VERSION && result.records() > 0) {
+                LOGGER.info("Migrating database file from format v{} to v{}.", result.version(), SnapshotFormat.VERSION);
+                dirty = true;
+            }
         }
-        long fileLength = dbFile.length();
-        if (fileLength == 0) {
-            return;
+        for (long generation : manifest.generations()) {
+            File segment = segmentFile(generation);
+            if (!segment.exists()) {
+                LOGGER.error("Segment {} referenced by {} is missing.", segment.getName(), manifestFile.getName());
+                dirty = true;
+                continue;
+            }
+            SnapshotFormat.LoadResult result = loadFile(segment, generation, pool);
+            records += result.records();
+            log("Loaded %d records from segment %s", result.records(), segment.getName());
         }
-        dbMap.clear();
-        int recordCount = 0;
-        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(dbFile)))) {
-            while (true) {
-                try {
-                    String scope = dis.readUTF();
-                    int freq = dis.readInt();
-                    int keyLen = dis.readInt();
-                    byte[] keyBytes = new byte[keyLen];
-                    dis.readFully(keyBytes);
-                    long count = dis.readLong();
-                    AEKey key = new AEKey(scope, freq, keyBytes);
-                    // Reconstruct the AEItemKey from the stored bytes.
-                    AEItemKey aeKey = null;
-                    try {
-                        ItemStack stack = deserializeItemStackFromBytes(keyBytes);
-                        if (!stack.isEmpty()) {
-                            aeKey = AEItemKey.of(stack);
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    dbMap.put(key, new StoredEntry(count, aeKey));
-                    recordCount++;
-                } catch (Exception ex) {
-                    break;
+        // Segments left behind by a checkpoint that did not finish.
+        deleteUnreferencedSegments();
+        return records;
+    }
+
+    /**
+     * Loads the channels of one snapshot file that the manifest assigns to it.
+     *
+     * @param file       The file to read.
+     * @param generation The segment generation, or null for enderdrives.bin.
+     * @param pool       The pool to decode blocks on.
+     * @return What was read.
+     * @throws IOException if reading fails.
+     */
+    private static SnapshotFormat.LoadResult loadFile(File file, Long generation, ForkJoinPool pool) throws IOException {
+        SegmentManifest current = manifest;
+        // One sink per decoding task, so the channel cache below is never shared between threads.
+        Supplier<SnapshotFormat.RecordSink> sinks = () -> new SnapshotFormat.RecordSink() {
+            private String lastScope;
+            private int lastFreq;
+            private ChannelPartition target;
+
+            @Override
+            public void accept(String scope, int freq, int itemId, long count) {
+                // Records arrive grouped by channel, so the manifest is only consulted when the channel changes.
+                if (!scope.equals(lastScope) || freq != lastFreq) {
+                    lastScope = scope;
+                    lastFreq = freq;
+                    ChannelKey channel = new ChannelKey(scope, freq);
+                    target = Objects.equals(current.segmentOf(channel), generation) ? getOrCreatePartition(scope, freq) : null;
+                }
+                if (target != null) {
+                    // The AEItemKey is reconstructed from the dictionary bytes on first query.
+                    target.put(itemId, count);
                 }
             }
+        };
+        SnapshotFormat.LoadResult result = SnapshotFormat.read(file, sinks, pool);
+        if (result.corruptBlocks() > 0) {
+            File backup = new File(file.getAbsolutePath() + ".corrupt-" + System.currentTimeMillis());
+            Files.copy(file.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.error("{} damaged block(s) were skipped while loading {}. A copy was saved as {}.",
+                    result.corruptBlocks(), file.getName(), backup.getName());
+            dirty = true;
         }
+        return result;
     }
 
 // ==== Internal DB Tools ====
@@ -633,44 +1569,62 @@ public class EnderDBManager {
      * Migrates any legacy records with malformed or missing scope names to the "global" scope.
      */
     private static void migrateOldRecords() {
-        List<Map.Entry<AEKey, StoredEntry>> toMigrate = parallelCall(() ->
-                dbMap.entrySet().parallelStream()
-                        .filter(entry -> {
-                            String scope = entry.getKey().scope();
-                            return scope == null || scope.isEmpty() || (!scope.matches("^[a-z]+_[a-z0-9\\-]+$") && !scope.equals("global"));
-                        })
-                        .toList(), List.of()
-        );
+        List<ChannelPartition> toMigrate = partitions.values().stream()
+                .filter(partition -> {
+                    String scope = partition.channel().scope();
+                    return scope == null || scope.isEmpty() || (!scope.matches("^[a-z]+_[a-z0-9\\-]+$") && !scope.equals("global"));
+                })
+                .toList();
 
         if (toMigrate.isEmpty()) return;
 
-        LOGGER.info("Detected {} old-format records. Migrating to global scope...", toMigrate.size());
+        LOGGER.info("Detected {} old-format channels. Migrating to global scope...", toMigrate.size());
 
-        for (Map.Entry<AEKey, StoredEntry> entry : toMigrate) {
-            AEKey oldKey = entry.getKey();
-            StoredEntry value = entry.getValue();
-            AEKey newKey = new AEKey("global", oldKey.freq(), oldKey.itemBytes());
-            long existing = dbMap.getOrDefault(newKey, new StoredEntry(0L, null)).count();
-            dbMap.put(newKey, new StoredEntry(existing + value.count(), null));
-            dbMap.remove(oldKey);
+        for (ChannelPartition oldPartition : toMigrate) {
+            int freq = oldPartition.channel().freq();
+            ChannelPartition target = getOrCreatePartition("global", freq);
+            for (ItemSlot slot : oldPartition.slots().values()) {
+                ItemSlot existing = target.slot(slot.itemId());
+                target.put(slot.itemId(), (existing == null ? 0L : existing.count()) + slot.count());
+            }
+            target.markDirty();
+            partitions.remove(oldPartition.channel());
         }
 
         dirty = true;
     }
 
 
-    private static <T> T parallelCall(Callable<T> task, T fallback) {
-        try {
-            return SHARED_PARALLEL_POOL.submit(task).get();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return fallback;
-        }
+    public static boolean isKnownItem(String scopePrefix, int frequency, byte[] keyBytes) {
+        int itemId = ItemDictionary.find(keyBytes);
+        if (itemId < 0) return false;
+        ChannelPartition partition = getPartition(scopePrefix, frequency);
+        return partition != null && partition.isKnown(itemId);
     }
 
-    public static boolean isKnownItem(String scopePrefix, int frequency, byte[] keyBytes) {
-        AEKey key = new AEKey(scopePrefix, frequency, keyBytes);
-        return dbMap.containsKey(key) || deltaBuffer.containsKey(key);
+    /**
+     * Returns the partition of a channel without creating it.
+     *
+     * @param scopePrefix The scope name.
+     * @param freq        The frequency ID.
+     * @return The channel partition, or null if nothing was ever stored on it.
+     */
+    public static ChannelPartition getPartition(String scopePrefix, int freq) {
+        return partitions.get(new ChannelKey(scopePrefix, freq));
+    }
+
+    /**
+     * Looks up a channel by a key the caller keeps, so repeated lookups do not allocate.
+     *
+     * @param channel The channel.
+     * @return The partition, or null if the channel holds nothing.
+     */
+    public static @Nullable ChannelPartition getPartition(ChannelKey channel) {
+        return partitions.get(channel);
+    }
+
+    private static ChannelPartition getOrCreatePartition(String scopePrefix, int freq) {
+        return partitions.computeIfAbsent(new ChannelKey(scopePrefix, freq), ChannelPartition::new);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,518 @@
+package com.sts15.enderdrives.db;
+
+import com.sts15.enderdrives.config.serverConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Owns every background thread of EnderDrives, so the mod's work is bounded by its own configured pool
+ * sizes and never runs on the server's or the JVM's common pools.
+ * <p>
+ * Work is split into lanes:
+ * <ul>
+ *   <li>{@link Lane#LOAD} - latency-sensitive work a player is waiting for, like loading a tape or the database;</li>
+ *   <li>{@link Lane#FLUSH} - bulk background writes like checkpoints and tape flushes, on
+ *       lower priority threads so they never hold up a load;</li>
+ *   <li>{@link Lane#COMMAND} - long running admin commands like the autobenchmark, on one thread of their own
+ *       so they never delay a checkpoint;</li>
+ *   <li>{@link #compute()} - a fork-join pool for splitting large scans and decodes.</li>
+ * </ul>
+ * Periodic tasks are timed by a single scheduler thread that only hands them to their lane.
+ * Each lane keeps queue-depth and latency figures for the stats command.
+ * <p>
+ * Scans only go to the compute pool once they are large enough to earn back the handoff; see {@link #shouldSplit(int)}.
+ */
+public class EnderExecutors {
+
+    private static final Logger LOGGER = LogManager.getLogger("EnderDrives");
+    private static final Object lifecycleLock = new Object();
+    private static volatile Pools pools;
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 8_192;
+    private static final int MIN_PARALLEL_THRESHOLD = 1_024;
+    private static final int MAX_PARALLEL_THRESHOLD = 1 << 22;
+    private static final int CALIBRATION_ELEMENTS = 1 << 16;
+    private static final int CALIBRATION_WARMUP_ROUNDS = 5;
+    private static final int CALIBRATION_ROUNDS = 21;
+    private static volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private static volatile boolean thresholdCalibrated = false;
+    private static volatile boolean thresholdConfigured = false;
+    private static volatile long calibrationSink;
+
+    public enum Lane {
+        LOAD("EnderDrives-Load", Thread.NORM_PRIORITY),
+        FLUSH("EnderDrives-Flush", Thread.NORM_PRIORITY - 2),
+        COMMAND("EnderDrives-Command", Thread.MIN_PRIORITY);
+
+        private final String threadName;
+        private final int priority;
+        private final LaneMetrics metrics = new LaneMetrics();
+
+        Lane(String threadName, int priority) {
+            this.threadName = threadName;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Figures of one lane since the server started.
+     *
+     * @param lane          The lane name.
+     * @param threads       The configured number of threads.
+     * @param queued        Tasks waiting for a thread right now.
+     * @param running       Tasks running right now.
+     * @param completed     Tasks finished.
+     * @param avgWaitNanos  Average time a task waited in the queue.
+     * @param maxWaitNanos  Longest time a task waited in the queue.
+     * @param avgRunNanos   Average time a task ran.
+     */
+    public record LaneStats(String lane, int threads, int queued, int running, long completed,
+                            double avgWaitNanos, long maxWaitNanos, double avgRunNanos) {}
+
+    /**
+     * The executors of one server run. Every {@link #start()} creates new ones and {@link #stop()} shuts them down.
+     */
+    private static final class Pools {
+        final ThreadPoolExecutor load;
+        final ThreadPoolExecutor flush;
+        final ThreadPoolExecutor command;
+        final ForkJoinPool compute;
+        final ScheduledExecutorService scheduler;
+
+        Pools(int loadThreads, int flushThreads, int computeThreads) {
+            load = newLanePool(Lane.LOAD, loadThreads);
+            flush = newLanePool(Lane.FLUSH, flushThreads);
+            command = newLanePool(Lane.COMMAND, 1);
+            AtomicInteger computeIds = new AtomicInteger();
+            compute = new ForkJoinPool(computeThreads, pool -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("EnderDrives-Compute-" + computeIds.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, null, false);
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> newThread(r, "EnderDrives-Scheduler", Thread.NORM_PRIORITY));
+        }
+
+        ThreadPoolExecutor lane(Lane lane) {
+            return switch (lane) {
+                case LOAD -> load;
+                case FLUSH -> flush;
+                case COMMAND -> command;
+            };
+        }
+    }
+
+// ==== Lifecycle ====
+
+    /**
+     * Creates the pools with the configured sizes. Called when the server starts, before the databases start.
+     * A second call while running is ignored.
+     */
+    public static void start() {
+        synchronized (lifecycleLock) {
+            if (pools != null) return;
+            int cpus = Runtime.getRuntime().availableProcessors();
+            int loadThreads = serverConfig.EXECUTOR_LOAD_THREADS.get();
+            int flushThreads = serverConfig.EXECUTOR_FLUSH_THREADS.get();
+            int computeThreads = serverConfig.EXECUTOR_COMPUTE_THREADS.get();
+            if (computeThreads <= 0) {
+                // Leave a core for the server thread.
+                computeThreads = Math.max(1, Math.min(4, cpus - 1));
+            }
+            for (Lane lane : Lane.values()) {
+                lane.metrics.reset();
+            }
+            Pools started = new Pools(loadThreads, flushThreads, computeThreads);
+            pools = started;
+            LOGGER.info("EnderDrives executors started: {} load, {} flush, {} compute threads.",
+                    loadThreads, flushThreads, computeThreads);
+            int configuredThreshold = serverConfig.EXECUTOR_PARALLEL_THRESHOLD.get();
+            thresholdConfigured = configuredThreshold > 0;
+            thresholdCalibrated = false;
+            // Until calibrateWhenIdle() has measured it, the default applies.
+            parallelThreshold = thresholdConfigured ? configuredThreshold : DEFAULT_PARALLEL_THRESHOLD;
+        }
+    }
+
+    /**
+     * Shuts the pools down when the server stops, after the databases have stopped. Periodic tasks are
+     * cancelled; queued one-off tasks still run, for up to 10 s.
+     */
+    public static void stop() {
+        synchronized (lifecycleLock) {
+            Pools stopping = pools;
+            if (stopping == null) return;
+            pools = null;
+            stopping.scheduler.shutdownNow();
+            stopping.load.shutdown();
+            stopping.flush.shutdown();
+            stopping.command.shutdown();
+            stopping.compute.shutdown();
+            try {
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                for (Lane lane : Lane.values()) {
+                    if (!awaitTermination(stopping.lane(lane), deadline)) {
+                        LOGGER.warn("EnderDrives background work did not finish within 10 s, abandoning it.");
+                        dropQueued(lane, stopping.lane(lane));
+                    }
+                }
+                if (!awaitTermination(stopping.compute, deadline)) {
+                    LOGGER.warn("EnderDrives background work did not finish within 10 s, abandoning it.");
+                    stopping.compute.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static boolean awaitTermination(ExecutorService executor, long deadline) throws InterruptedException {
+        long remaining = deadline - System.nanoTime();
+        return remaining > 0 && executor.awaitTermination(remaining, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops a lane at once. Tasks dropped from its queue never start, so they are taken off the queue depth here.
+     *
+     * @param lane     The lane.
+     * @param executor The lane's executor.
+     */
+    private static void dropQueued(Lane lane, ThreadPoolExecutor executor) {
+        lane.metrics.queued.addAndGet(-executor.shutdownNow().size());
+    }
+
+    /**
+     * Interrupts running admin commands, drops queued ones and waits up to 10 s for them to end.
+     * Called when the server stops, before the databases the commands write to are stopped;
+     * the command lane rejects new work from then on.
+     */
+    public static void stopCommands() {
+        Pools current = pools;
+        if (current == null) return;
+        dropQueued(Lane.COMMAND, current.command);
+        try {
+            if (!current.command.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOGGER.warn("An EnderDrives command did not stop within 10 s.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static boolean isRunning() {
+        return pools != null;
+    }
+
+// ==== Submitting Work ====
+
+    /**
+     * Runs a task on a lane.
+     *
+     * @param lane The lane.
+     * @param task The task.
+     * @return The task's future.
+     * @throws RejectedExecutionException if the executors are not running.
+     */
+    public static Future<?> submit(Lane lane, Runnable task) {
+        return supply(lane, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Computes a value on a lane.
+     *
+     * @param lane     The lane.
+     * @param supplier Computes the value.
+     * @return A future completed with the value, or exceptionally with what the supplier threw.
+     * @throws RejectedExecutionException if the executors are not running.
+     */
+    public static <T> CompletableFuture<T> supply(Lane lane, Supplier<T> supplier) {
+        ThreadPoolExecutor executor = running().lane(lane);
+        long queuedAt = System.nanoTime();
+        lane.metrics.queued.incrementAndGet();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long startedAt = System.nanoTime();
+                lane.metrics.onStart(startedAt - queuedAt);
+                try {
+                    return supplier.get();
+                } finally {
+                    lane.metrics.onFinish(System.nanoTime() - startedAt);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            lane.metrics.queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a task on a lane every {@code periodMillis}. A run that is still queued or running when the next one
+     * is due is not run twice; the next run is simply skipped.
+     *
+     * @param lane         The lane.
+     * @param task         The task.
+     * @param periodMillis The time between runs.
+     * @return Cancels the schedule.
+     * @throws RejectedExecutionException if the executors are not running.
+     */
+    public static ScheduledFuture<?> schedule(Lane lane, Runnable task, long periodMillis) {
+        Pools current = running();
+        AtomicInteger inFlight = new AtomicInteger();
+        return current.scheduler.scheduleAtFixedRate(() -> {
+            if (!inFlight.compareAndSet(0, 1)) return;
+            try {
+                submit(lane, () -> {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Scheduled EnderDrives task failed: ", e);
+                    } finally {
+                        inFlight.set(0);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.set(0);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the pool for splitting large scans and decodes. Work submitted to it is not counted in the lane figures.
+     *
+     * @return The pool.
+     * @throws RejectedExecutionException if the executors are not running.
+     */
+    public static ForkJoinPool compute() {
+        return running().compute;
+    }
+
+    /**
+     * Creates a dedicated thread for a loop that lives as long as the database, like the commit thread,
+     * which parks between batches and must not take a pool thread away from other work.
+     *
+     * @param name The thread name.
+     * @param body The loop.
+     * @return The thread, not yet started.
+     */
+    public static Thread newDedicatedThread(String name, Runnable body) {
+        return newThread(body, name, Thread.NORM_PRIORITY);
+    }
+
+    private static Pools running() {
+        Pools current = pools;
+        if (current == null) {
+            throw new RejectedExecutionException("EnderDrives executors are not running");
+        }
+        return current;
+    }
+
+    private static ThreadPoolExecutor newLanePool(Lane lane, int threads) {
+        AtomicInteger ids = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> newThread(r, lane.threadName + "-" + ids.incrementAndGet(), lane.priority));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Thread newThread(Runnable r, String name, int priority) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.setPriority(priority);
+        t.setUncaughtExceptionHandler((thread, e) -> LOGGER.error("Uncaught exception on {}: ", thread.getName(), e));
+        return t;
+    }
+
+// ==== Sequential / Parallel Cutoff ====
+
+    /**
+     * Decides whether work over {@code size} elements is worth splitting on the compute pool.
+     * Anything smaller runs inline on the calling thread, which for a typical channel costs less than
+     * handing the work to another thread and blocking for the result.
+     *
+     * @param size The number of elements.
+     * @return true if the work should be split.
+     */
+    public static boolean shouldSplit(int size) {
+        return size >= parallelThreshold && pools != null;
+    }
+
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public static boolean isParallelThresholdCalibrated() {
+        return thresholdCalibrated;
+    }
+
+    /**
+     * Measures the cutoff for {@link #shouldSplit(int)} on the load lane, unless it is configured or already measured.
+     * Called once EnderDB is ready, so the measurement does not compete with loading for the compute pool.
+     */
+    public static void calibrateWhenIdle() {
+        Pools current = pools;
+        if (current == null || thresholdConfigured || thresholdCalibrated) return;
+        try {
+            submit(Lane.LOAD, () -> calibrateParallelThreshold(current.compute));
+        } catch (RejectedExecutionException e) {
+            // Stopped in the meantime; the next start measures again.
+        }
+    }
+
+    /**
+     * Measures the cutoff for {@link #shouldSplit(int)}: the cost of scanning one element inline, and the
+     * fixed cost of a parallel scan on the compute pool (task submission, fork/join and the blocking get).
+     * Splitting n elements over p threads saves n * (1 - 1/p) element costs, so it pays off once that exceeds
+     * the fixed cost; the cutoff is twice that break-even point, so splitting has to win clearly.
+     * Each figure is the median of several runs after a few warm-up runs, each started once the compute
+     * pool is idle, so a single run disturbed by other work or a GC does not decide the cutoff.
+     *
+     * @param pool The compute pool.
+     */
+    private static void calibrateParallelThreshold(ForkJoinPool pool) {
+        int parallelism = pool.getParallelism();
+        if (parallelism < 2) {
+            parallelThreshold = Integer.MAX_VALUE;
+            thresholdCalibrated = true;
+            LOGGER.info("EnderDrives compute pool has a single thread, scans always run inline.");
+            return;
+        }
+        List<Long> sample = new ArrayList<>(CALIBRATION_ELEMENTS);
+        for (int i = 0; i < CALIBRATION_ELEMENTS; i++) {
+            sample.add(i * 31L);
+        }
+        List<Long> handoffSample = sample.subList(0, parallelism * 2);
+        try {
+            long[] scans = new long[CALIBRATION_ROUNDS];
+            long[] handoffs = new long[CALIBRATION_ROUNDS];
+            for (int round = -CALIBRATION_WARMUP_ROUNDS; round < CALIBRATION_ROUNDS; round++) {
+                pool.awaitQuiescence(1, TimeUnit.SECONDS);
+                long start = System.nanoTime();
+                calibrationSink += scanInline(sample);
+                long scan = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                calibrationSink += pool.submit(() -> handoffSample.parallelStream()
+                        .map(EnderExecutors::calibrationElement)
+                        .filter(e -> e != null)
+                        .toList()
+                        .size()).get();
+                long handoff = System.nanoTime() - start;
+                if (round >= 0) {
+                    scans[round] = scan;
+                    handoffs[round] = handoff;
+                }
+            }
+            long medianScan = median(scans);
+            long medianHandoff = median(handoffs);
+            double elementNanos = Math.max(0.1, (double) medianScan / CALIBRATION_ELEMENTS);
+            double breakEven = medianHandoff / (elementNanos * (1.0 - 1.0 / parallelism));
+            parallelThreshold = (int) Math.max(MIN_PARALLEL_THRESHOLD, Math.min(MAX_PARALLEL_THRESHOLD, 2 * breakEven));
+            thresholdCalibrated = true;
+            LOGGER.info("EnderDrives scans split across {} threads from {} elements (inline {} ns/element, parallel handoff {} us).",
+                    parallelism, parallelThreshold, String.format("%.1f", elementNanos), medianHandoff / 1_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            LOGGER.warn("Could not calibrate the parallel scan threshold, keeping {}: {}", parallelThreshold, e.toString());
+        }
+    }
+
+    private static long median(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static int scanInline(List<Long> sample) {
+        List<long[]> out = new ArrayList<>();
+        for (Long value : sample) {
+            long[] element = calibrationElement(value);
+            if (element != null) out.add(element);
+        }
+        return out.size();
+    }
+
+    /**
+     * Stands in for the per-slot work of a channel scan: a read, a filter and one small allocation.
+     */
+    private static long[] calibrationElement(Long value) {
+        return (value & 7) == 7 ? null : new long[]{value};
+    }
+
+// ==== Metrics ====
+
+    /**
+     * Returns the figures of every lane.
+     *
+     * @return One entry per lane.
+     */
+    public static LaneStats[] stats() {
+        Pools current = pools;
+        Lane[] lanes = Lane.values();
+        LaneStats[] stats = new LaneStats[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            Lane lane = lanes[i];
+            int threads = current == null ? 0 : current.lane(lane).getMaximumPoolSize();
+            stats[i] = lane.metrics.snapshot(lane.name(), threads);
+        }
+        return stats;
+    }
+
+    public static int getComputeParallelism() {
+        Pools current = pools;
+        return current == null ? 0 : current.compute.getParallelism();
+    }
+
+    private static final class LaneMetrics {
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong waitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final AtomicLong runNanos = new AtomicLong();
+
+        void onStart(long waited) {
+            queued.decrementAndGet();
+            running.incrementAndGet();
+            started.incrementAndGet();
+            waitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+        }
+
+        void onFinish(long ran) {
+            running.decrementAndGet();
+            completed.incrementAndGet();
+            runNanos.addAndGet(ran);
+        }
+
+        void reset() {
+            queued.set(0);
+            running.set(0);
+            started.set(0);
+            completed.set(0);
+            waitNanos.set(0);
+            maxWaitNanos.set(0);
+            runNanos.set(0);
+        }
+
+        LaneStats snapshot(String name, int threads) {
+            long startedCount = started.get();
+            long completedCount = completed.get();
+            return new LaneStats(name, threads, queued.get(), running.get(), completedCount,
+                    startedCount == 0 ? 0 : (double) waitNanos.get() / startedCount, maxWaitNanos.get(),
+                    completedCount == 0 ? 0 : (double) runNanos.get() / completedCount);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package com.sts15.enderdrives.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Global dictionary that interns every distinct serialized item to a compact integer id.
+ * Channels, the WAL and enderdrives.bin reference items by id, so the NBT of a common item is held once
+ * in memory and written once to disk no matter how many channels store it. Every id also owns a single
+ * shared {@link LazyItemKey}, so an item is decoded at most once server-wide.
+ * <p>
+ * The dictionary file is append-only while the server runs. New ids must be {@link #flush() flushed}
+ * before any WAL record or snapshot that references them is written, and {@link #sync() forced} before
+ * such a record or snapshot is forced or replaces the WAL files that led to it. Ids that are no longer referenced
+ * are reclaimed by {@link #compact(BitSet)} at startup, once the loaded state has been checkpointed.
+ */
+public final class ItemDictionary {
+
+    private static final Logger LOGGER = LogManager.getLogger("EnderDrives");
+    private static final int MAGIC = 0x45444431; // "EDD1"
+    private static final int VERSION = 1;
+
+    private static final ConcurrentHashMap<BytesKey, Integer> idsByBytes = new ConcurrentHashMap<>();
+    private static volatile LazyItemKey[] keysById = new LazyItemKey[1024];
+    private static final Object assignLock = new Object();
+    private static final Object fileLock = new Object();
+    private static int nextId = 0;
+    private static int[] freeIds = new int[0];
+    private static int freeCount = 0;
+    private static volatile long generation = 0;
+    private static volatile long assignments = 0;
+    private static List<Integer> unflushed = new ArrayList<>();
+    private static File dictFile;
+    private static DataOutputStream out;
+    private static FileOutputStream outFile;
+    private static boolean unsynced = false;
+
+    private ItemDictionary() {}
+
+// ==== Lookup ====
+
+    /**
+     * Returns the id of an item encoding, assigning a new one on first sight.
+     *
+     * @param itemBytes Serialized ItemStack data. The array is retained and must not be modified afterwards.
+     * @return The item id.
+     */
+    public static int intern(byte[] itemBytes) {
+        BytesKey key = new BytesKey(itemBytes);
+        Integer id = idsByBytes.get(key);
+        if (id != null) return id;
+        synchronized (assignLock) {
+            id = idsByBytes.get(key);
+            if (id != null) return id;
+            int newId = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            ensureCapacity(newId);
+            keysById[newId] = LazyItemKey.ofBytes(itemBytes);
+            idsByBytes.put(key, newId);
+            unflushed.add(newId);
+            assignments++;
+            return newId;
+        }
+    }
+
+    /**
+     * Looks up the id of an item encoding without assigning one.
+     *
+     * @param itemBytes Serialized ItemStack data.
+     * @return The item id, or -1 if the encoding was never stored.
+     */
+    public static int find(byte[] itemBytes) {
+        return find(new BytesKey(itemBytes));
+    }
+
+    /**
+     * Looks up the id of an item encoding wrapped once by the caller, so repeated lookups neither allocate
+     * nor hash the bytes again.
+     *
+     * @param key The wrapped encoding.
+     * @return The item id, or -1 if the encoding was never stored.
+     */
+    static int find(BytesKey key) {
+        Integer id = idsByBytes.get(key);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the shared lazily decoded key of an id.
+     *
+     * @param id The item id.
+     * @return The key, or {@link LazyItemKey#EMPTY} if the id is unknown.
+     */
+    public static LazyItemKey keyOf(int id) {
+        LazyItemKey[] keys = keysById;
+        LazyItemKey key = id >= 0 && id < keys.length ? keys[id] : null;
+        return key == null ? LazyItemKey.EMPTY : key;
+    }
+
+    /**
+     * Returns the serialized bytes of an id.
+     *
+     * @param id The item id.
+     * @return The bytes, or an empty array if the id is unknown.
+     */
+    public static byte[] bytesOf(int id) {
+        byte[] bytes = keyOf(id).itemBytes();
+        return bytes == null ? new byte[0] : bytes;
+    }
+
+    public static int size() {
+        return idsByBytes.size();
+    }
+
+    /**
+     * Returns a counter that changes whenever existing ids may have been reassigned (load, compaction, close).
+     * An id looked up under one generation stays valid for as long as the generation is unchanged.
+     *
+     * @return The generation.
+     */
+    public static long generation() {
+        return generation;
+    }
+
+    /**
+     * Returns a counter that changes whenever an id is assigned. A failed {@link #find} stays valid for as long as
+     * it is unchanged.
+     *
+     * @return The number of ids assigned so far.
+     */
+    public static long assignments() {
+        return assignments;
+    }
+
+    private static void ensureCapacity(int id) {
+        LazyItemKey[] keys = keysById;
+        if (id < keys.length) return;
+        keysById = Arrays.copyOf(keys, Math.max(id + 1, keys.length * 2));
+    }
+
+// ==== Persistence ====
+
+    /**
+     * Loads the dictionary file into memory and opens it for appending.
+     *
+     * @param file The dictionary file.
+     * @throws IOException if the file cannot be read or opened.
+     */
+    public static void load(File file) throws IOException {
+        clear();
+        dictFile = file;
+        int loaded = 0;
+        if (file.exists() && file.length() > 0) {
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (dis.readInt() != MAGIC) {
+                    throw new IOException("Not an EnderDrives dictionary file: " + file);
+                }
+                int version = dis.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported dictionary version " + version + " in " + file);
+                }
+                while (true) {
+                    try {
+                        int id = dis.readInt();
+                        int len = dis.readInt();
+                        byte[] bytes = new byte[len];
+                        dis.readFully(bytes);
+                        int crc = dis.readInt();
+                        if (crc != checksum(id, bytes)) {
+                            LOGGER.warn("Dictionary record {} has a bad checksum, ignoring the rest of {}", id, file.getName());
+                            break;
+                        }
+                        restore(id, bytes);
+                        loaded++;
+                    } catch (EOFException eof) {
+                        break;
+                    }
+                }
+            }
+        }
+        synchronized (fileLock) {
+            if (!file.exists() || file.length() == 0) {
+                rewrite();
+            } else {
+                openForAppend();
+            }
+        }
+        LOGGER.info("Loaded {} item dictionary entries.", loaded);
+    }
+
+    private static void restore(int id, byte[] bytes) {
+        synchronized (assignLock) {
+            ensureCapacity(id);
+            keysById[id] = LazyItemKey.ofBytes(bytes);
+            idsByBytes.put(new BytesKey(bytes), id);
+            nextId = Math.max(nextId, id + 1);
+            assignments++;
+        }
+    }
+
+    /**
+     * Appends every id assigned since the last flush to the dictionary file.
+     * Must run before WAL records or snapshots referencing those ids are written.
+     */
+    public static void flush() {
+        append();
+    }
+
+    /**
+     * Flushes pending ids and forces the dictionary file to disk.
+     * Must run before a WAL record or snapshot referencing those ids is forced, or before WAL files are
+     * deleted because a snapshot covers them; otherwise a power cut could leave stored ids unresolvable.
+     *
+     * @throws IOException if the ids cannot be appended or the file cannot be forced.
+     */
+    public static void sync() throws IOException {
+        if (!append()) {
+            throw new IOException("Item dictionary could not be appended");
+        }
+        synchronized (fileLock) {
+            if (unsynced && outFile != null) {
+                outFile.getChannel().force(false);
+                unsynced = false;
+            }
+        }
+    }
+
+    /**
+     * Appends every id assigned since the last flush to the dictionary file.
+     *
+     * @return false if writing failed; the ids stay pending and are retried by the next flush.
+     */
+    private static boolean append() {
+        List<Integer> toWrite;
+        synchronized (assignLock) {
+            if (unflushed.isEmpty()) return true;
+            toWrite = unflushed;
+            unflushed = new ArrayList<>();
+        }
+        synchronized (fileLock) {
+            try {
+                for (int id : toWrite) {
+                    writeRecord(out, id, keysById[id].itemBytes());
+                }
+                out.flush();
+                unsynced = true;
+                return true;
+            } catch (IOException e) {
+                LOGGER.error("Failed to append to item dictionary: ", e);
+                synchronized (assignLock) {
+                    unflushed.addAll(toWrite);
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Forgets every id that is not in the live set and rewrites the dictionary file with only the live ones.
+     * Ids keep their numbers; freed numbers are reused for new items.
+     * Only safe while nothing else uses the database, and only once no WAL or snapshot references dead ids.
+     *
+     * @param live The ids still referenced by the database.
+     */
+    public static void compact(BitSet live) {
+        int freed = 0;
+        synchronized (assignLock) {
+            synchronized (fileLock) {
+                int[] free = new int[nextId];
+                int count = 0;
+                LazyItemKey[] keys = keysById;
+                for (int id = nextId - 1; id >= 0; id--) {
+                    LazyItemKey key = keys[id];
+                    if (key != null && live.get(id)) continue;
+                    if (key != null) {
+                        idsByBytes.remove(new BytesKey(key.itemBytes()));
+                        keys[id] = null;
+                        freed++;
+                    }
+                    free[count++] = id;
+                }
+                freeIds = free;
+                freeCount = count;
+                unflushed = new ArrayList<>();
+                generation++;
+                try {
+                    rewrite();
+                } catch (IOException e) {
+                    LOGGER.error("Failed to compact item dictionary: ", e);
+                }
+            }
+        }
+        if (freed > 0) {
+            LOGGER.info("Item dictionary compacted: {} unused entries removed, {} remaining.", freed, size());
+        }
+    }
+
+    private static void rewrite() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        File temp = new File(dictFile.getAbsolutePath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp);
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            LazyItemKey[] keys = keysById;
+            for (int id = 0; id < nextId; id++) {
+                if (keys[id] != null) {
+                    writeRecord(dos, id, keys[id].itemBytes());
+                }
+            }
+            dos.flush();
+            // The rewrite replaces the only copy of every id, so it has to be on disk before the move.
+            fos.getChannel().force(true);
+        }
+        Files.move(temp.toPath(), dictFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        openForAppend();
+    }
+
+    private static void openForAppend() throws IOException {
+        outFile = new FileOutputStream(dictFile, true);
+        out = new DataOutputStream(new BufferedOutputStream(outFile));
+        unsynced = false;
+    }
+
+    /**
+     * Flushes pending ids and closes the dictionary file, then forgets every id.
+     */
+    public static void close() {
+        try {
+            sync();
+        } catch (IOException e) {
+            LOGGER.error("Failed to sync item dictionary: ", e);
+        }
+        synchronized (fileLock) {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                LOGGER.error("Failed to close item dictionary: ", e);
+            }
+            out = null;
+            outFile = null;
+        }
+        clear();
+    }
+
+    private static void clear() {
+        synchronized (assignLock) {
+            idsByBytes.clear();
+            keysById = new LazyItemKey[1024];
+            nextId = 0;
+            freeIds = new int[0];
+            freeCount = 0;
+            unflushed = new ArrayList<>();
+            generation++;
+        }
+    }
+
+    private static void writeRecord(DataOutputStream dos, int id, byte[] bytes) throws IOException {
+        dos.writeInt(id);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+        dos.writeInt(checksum(id, bytes));
+    }
+
+    private static int checksum(int id, byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(id >>> 24);
+        crc.update(id >>> 16);
+        crc.update(id >>> 8);
+        crc.update(id);
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Byte array wrapper with content equality and a precomputed hash.
+     */
+    static final class BytesKey {
+        private final byte[] bytes;
+        private final int hash;
+
+        BytesKey(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || (o instanceof BytesKey other && hash == other.hash && Arrays.equals(bytes, other.bytes));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.sts15.enderdrives.db;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * The stored count of one item in one channel, and the only place that count lives.
+ * Counts change by compare-and-set on the slot itself, so reading a count is a single volatile load and
+ * updates of different items never contend.
+ * <p>
+ * A slot whose count reaches 0 is retired: it is removed from its partition and refuses further updates,
+ * so a writer still holding it retries on a fresh slot instead of updating one that is no longer stored.
+ * A changed slot sits on the EnderDB change log at most once; the commit thread writes its count at the
+ * time it is drained, so any number of changes in between cost a single WAL record.
+ */
+public final class ItemSlot {
+
+    /**
+     * Returned by the update methods when the slot was retired and the caller has to look up a new one.
+     */
+    public static final long RETIRED = Long.MIN_VALUE;
+
+    private static final VarHandle COUNT;
+    private static final VarHandle LOGGED;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            COUNT = lookup.findVarHandle(ItemSlot.class, "count", long.class);
+            LOGGED = lookup.findVarHandle(ItemSlot.class, "logged", boolean.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final ChannelPartition partition;
+    private final int itemId;
+    private final LazyItemKey itemKey;
+    private volatile long count;
+    private volatile boolean logged;
+
+    ItemSlot(ChannelPartition partition, int itemId, LazyItemKey itemKey) {
+        this.partition = partition;
+        this.itemId = itemId;
+        this.itemKey = itemKey;
+    }
+
+    /**
+     * Creates the change log entry that drops a whole channel. It is never stored in a partition.
+     *
+     * @param partition The dropped partition.
+     * @return The tombstone.
+     */
+    static ItemSlot tombstone(ChannelPartition partition) {
+        return new ItemSlot(partition, WalFormat.DROP_CHANNEL, LazyItemKey.EMPTY);
+    }
+
+    public boolean isTombstone() {
+        return itemId == WalFormat.DROP_CHANNEL;
+    }
+
+    public ChannelPartition partition() {
+        return partition;
+    }
+
+    public int itemId() {
+        return itemId;
+    }
+
+    public LazyItemKey itemKey() {
+        return itemKey;
+    }
+
+    /**
+     * Returns the current count.
+     *
+     * @return The count, 0 once the slot is retired.
+     */
+    public long count() {
+        long current = count;
+        return current < 0 ? 0L : current;
+    }
+
+    /**
+     * Adds a delta to the count, clamping the result at 0.
+     *
+     * @param delta The delta, positive or negative.
+     * @return The count before the change, or {@link #RETIRED}.
+     */
+    long add(long delta) {
+        while (true) {
+            long current = count;
+            if (current == RETIRED) return RETIRED;
+            long next = Math.max(0L, current + delta);
+            if (current == next || COUNT.compareAndSet(this, current, next)) return current;
+        }
+    }
+
+    /**
+     * Replaces the count.
+     *
+     * @param value The new count; negative values are stored as 0.
+     * @return The count before the change, or {@link #RETIRED}.
+     */
+    long set(long value) {
+        long next = Math.max(0L, value);
+        while (true) {
+            long current = count;
+            if (current == RETIRED) return RETIRED;
+            if (current == next || COUNT.compareAndSet(this, current, next)) return current;
+        }
+    }
+
+    /**
+     * Retires the slot if its count is 0.
+     *
+     * @return true if the slot was retired by this call.
+     */
+    boolean retireIfEmpty() {
+        return COUNT.compareAndSet(this, 0L, RETIRED);
+    }
+
+    /**
+     * Claims the slot's place on the change log.
+     *
+     * @return true if the caller has to queue the slot, false if it is already queued.
+     */
+    boolean markLogged() {
+        return !logged && LOGGED.compareAndSet(this, false, true);
+    }
+
+    /**
+     * Releases the slot's place on the change log. Called before the count is read for the WAL,
+     * so a change made after the read queues the slot again.
+     */
+    void clearLogged() {
+        logged = false;
+    }
+}
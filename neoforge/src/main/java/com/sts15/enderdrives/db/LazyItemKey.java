@@ -0,0 +1,78 @@
+package com.sts15.enderdrives.db;
+
+import appeng.api.stacks.AEItemKey;
+import net.minecraft.world.item.ItemStack;
+import org.jetbrains.annotations.Nullable;
+
+import static com.sts15.enderdrives.inventory.EnderDiskInventory.deserializeItemStackFromBytes;
+
+/**
+ * An {@link AEItemKey} that is only decoded from its serialized NBT the first time it is asked for.
+ * One instance is shared by every count update of the same stored key, so a key is parsed at most once
+ * for as long as it stays in memory, and never if nothing queries it.
+ */
+public final class LazyItemKey {
+
+    public static final LazyItemKey EMPTY = new LazyItemKey(null, null, true);
+
+    private final byte[] itemBytes;
+    private volatile AEItemKey aeKey;
+    private volatile boolean resolved;
+
+    private LazyItemKey(byte[] itemBytes, AEItemKey aeKey, boolean resolved) {
+        this.itemBytes = itemBytes;
+        this.aeKey = aeKey;
+        this.resolved = resolved;
+    }
+
+    /**
+     * Wraps serialized item bytes whose key will be decoded on first use.
+     *
+     * @param itemBytes Serialized ItemStack data.
+     * @return A lazy key for the bytes.
+     */
+    public static LazyItemKey ofBytes(byte[] itemBytes) {
+        return new LazyItemKey(itemBytes, null, false);
+    }
+
+    /**
+     * Wraps an already known key.
+     *
+     * @param aeKey The decoded key, may be null.
+     * @return A resolved lazy key.
+     */
+    public static LazyItemKey of(@Nullable AEItemKey aeKey) {
+        return aeKey == null ? EMPTY : new LazyItemKey(null, aeKey, true);
+    }
+
+    /**
+     * Returns the decoded key, decoding it on the first call.
+     *
+     * @return The key, or null if the stored bytes can no longer be parsed (e.g. the item was removed).
+     */
+    public @Nullable AEItemKey get() {
+        if (!resolved) {
+            synchronized (this) {
+                if (!resolved) {
+                    aeKey = decode(itemBytes);
+                    resolved = true;
+                }
+            }
+        }
+        return aeKey;
+    }
+
+    public @Nullable byte[] itemBytes() {
+        return itemBytes;
+    }
+
+    private static @Nullable AEItemKey decode(byte[] itemBytes) {
+        try {
+            ItemStack stack = deserializeItemStackFromBytes(itemBytes);
+            return stack.isEmpty() ? null : AEItemKey.of(stack);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
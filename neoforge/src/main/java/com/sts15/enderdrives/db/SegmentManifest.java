@@ -0,0 +1,159 @@
+package com.sts15.enderdrives.db;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Records which segment file holds the current contents of each channel checkpointed since the last full snapshot.
+ * <p>
+ * Incremental checkpoints write only the channels that changed into a new segment file
+ * (enderdrives.seg.&lt;generation&gt;, same layout as enderdrives.bin) and point those channels at it.
+ * A channel listed here is loaded from its segment, replacing whatever enderdrives.bin holds for it;
+ * a listed channel without records in its segment is empty. Channels not listed come from enderdrives.bin.
+ * <p>
+ * Layout: int magic "EDM1", int version, long nextGeneration, int count,
+ * (UTF scope, int freq, long generation) * count, int crc32 of everything before it.
+ * Instances are immutable; the manifest file is replaced atomically.
+ */
+public final class SegmentManifest {
+
+    private static final int MAGIC = 0x45444D31; // "EDM1"
+    private static final int VERSION = 1;
+
+    private final Map<ChannelKey, Long> segments;
+    private final long nextGeneration;
+
+    private SegmentManifest(Map<ChannelKey, Long> segments, long nextGeneration) {
+        this.segments = segments;
+        this.nextGeneration = nextGeneration;
+    }
+
+    /**
+     * Creates a manifest that sends every channel to enderdrives.bin.
+     *
+     * @param nextGeneration The generation the next segment file will use.
+     * @return The manifest.
+     */
+    public static SegmentManifest empty(long nextGeneration) {
+        return new SegmentManifest(Map.of(), nextGeneration);
+    }
+
+    /**
+     * Returns the generation of the segment holding a channel.
+     *
+     * @param channel The channel.
+     * @return The segment generation, or null if the channel is read from enderdrives.bin.
+     */
+    public Long segmentOf(ChannelKey channel) {
+        return segments.get(channel);
+    }
+
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    public long nextGeneration() {
+        return nextGeneration;
+    }
+
+    /**
+     * Returns the generations of all segment files that are still referenced.
+     *
+     * @return The generations in ascending order.
+     */
+    public SortedSet<Long> generations() {
+        return new TreeSet<>(segments.values());
+    }
+
+    /**
+     * Returns a copy in which the given channels point at a new segment.
+     *
+     * @param generation The generation of the new segment file.
+     * @param channels   The channels it holds.
+     * @return The updated manifest.
+     */
+    public SegmentManifest withSegment(long generation, Collection<ChannelKey> channels) {
+        Map<ChannelKey, Long> updated = new HashMap<>(segments);
+        for (ChannelKey channel : channels) {
+            updated.put(channel, generation);
+        }
+        return new SegmentManifest(updated, Math.max(nextGeneration, generation + 1));
+    }
+
+    /**
+     * Reads a manifest file.
+     *
+     * @param file The manifest file.
+     * @return The manifest, or an empty one if the file does not exist.
+     * @throws IOException if the file is unreadable or fails its checksum.
+     */
+    public static SegmentManifest read(File file) throws IOException {
+        if (!file.exists()) {
+            return empty(1);
+        }
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (data.length < Integer.BYTES) {
+            throw new IOException("Manifest " + file.getName() + " is truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - Integer.BYTES);
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Not an EnderDrives manifest: " + file.getName());
+            }
+            int version = dis.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported manifest version " + version + " in " + file.getName());
+            }
+            long nextGeneration = dis.readLong();
+            int count = dis.readInt();
+            Map<ChannelKey, Long> segments = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String scope = dis.readUTF();
+                int freq = dis.readInt();
+                segments.put(new ChannelKey(scope, freq), dis.readLong());
+            }
+            if (dis.readInt() != (int) crc.getValue()) {
+                throw new IOException("Manifest " + file.getName() + " failed its checksum");
+            }
+            return new SegmentManifest(segments, nextGeneration);
+        }
+    }
+
+    /**
+     * Writes the manifest to a temporary file and moves it over the target.
+     *
+     * @param file The manifest file.
+     * @throws IOException if writing fails.
+     */
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(nextGeneration);
+            dos.writeInt(segments.size());
+            for (Map.Entry<ChannelKey, Long> entry : segments.entrySet()) {
+                dos.writeUTF(entry.getKey().scope());
+                dos.writeInt(entry.getKey().freq());
+                dos.writeLong(entry.getValue());
+            }
+        }
+        byte[] data = baos.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp);
+             DataOutputStream dos = new DataOutputStream(fos)) {
+            dos.write(data);
+            dos.writeInt((int) crc.getValue());
+            dos.flush();
+            fos.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
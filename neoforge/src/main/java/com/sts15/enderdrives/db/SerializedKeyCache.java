@@ -0,0 +1,188 @@
+package com.sts15.enderdrives.db;
+
+import appeng.api.stacks.AEItemKey;
+import com.sts15.enderdrives.config.serverConfig;
+import com.sts15.enderdrives.inventory.EnderDiskInventory;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache from an {@link AEItemKey} to its canonical serialized form (a count-1 ItemStack written as NBT).
+ * AE2 calls insert/extract with the same key instances over and over, including for every SIMULATE, so
+ * looking the bytes up here avoids an ItemStack save and NbtIo write per call.
+ * <p>
+ * Lookups rely on AEItemKey's precomputed hash and identity-first equals, so a hit for a reused key
+ * instance never compares item components. The cache is split into two generations: when the young
+ * generation is full it becomes the old one, and entries still in use are promoted back on their next hit.
+ * Returned arrays are shared and must never be modified.
+ * <p>
+ * Each entry also remembers the key's {@link ItemDictionary} id, so hot read paths resolve an AE2 key to its
+ * stored counter without hashing the serialized bytes again.
+ */
+public final class SerializedKeyCache {
+
+    private static final Object rotateLock = new Object();
+    private static volatile ConcurrentHashMap<AEItemKey, Entry> young = new ConcurrentHashMap<>();
+    private static volatile ConcurrentHashMap<AEItemKey, Entry> old = new ConcurrentHashMap<>();
+    private static final byte[] EMPTY = new byte[0];
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder rotations = new LongAdder();
+
+    private SerializedKeyCache() {}
+
+    /**
+     * The serialized form of a key and its last dictionary lookup.
+     */
+    public static final class Entry {
+        private final byte[] bytes;
+        private final ItemDictionary.BytesKey dictionaryKey;
+        private volatile @Nullable FoundId found;
+        private volatile long absentAtAssignments = -1;
+
+        private Entry(byte[] bytes) {
+            this.bytes = bytes;
+            this.dictionaryKey = new ItemDictionary.BytesKey(bytes);
+        }
+
+        /**
+         * Returns the canonical serialized bytes. The array is shared and must never be modified.
+         *
+         * @return The bytes.
+         */
+        public byte[] bytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the {@link ItemDictionary} id of the key. This neither allocates nor hashes the bytes unless the
+         * dictionary changed in a way that could alter the answer: a found id stays valid until the dictionary's
+         * generation changes, a missing one until an id is assigned.
+         *
+         * @return The boxed id, or null if the item has never been stored.
+         */
+        public @Nullable Integer itemId() {
+            long generation = ItemDictionary.generation();
+            FoundId memo = found;
+            if (memo != null && memo.generation() == generation) {
+                return memo.itemId();
+            }
+            // Read before the lookup, so an id assigned concurrently forces another lookup next time.
+            long assignments = ItemDictionary.assignments();
+            if (absentAtAssignments == assignments) return null;
+            int id = ItemDictionary.find(dictionaryKey);
+            if (id < 0) {
+                absentAtAssignments = assignments;
+                return null;
+            }
+            Integer itemId = id;
+            found = new FoundId(itemId, generation);
+            return itemId;
+        }
+    }
+
+    /**
+     * An id found in the dictionary and the generation it is valid for. The id is kept boxed so callers can
+     * use it as a map key without allocating.
+     */
+    private record FoundId(Integer itemId, long generation) {}
+
+    /**
+     * Returns the canonical serialized bytes for an item key, encoding it only on a cache miss.
+     *
+     * @param key The AE2 item key.
+     * @return The serialized bytes, or an empty array if the stack could not be serialized.
+     */
+    public static byte[] get(AEItemKey key) {
+        Entry cached = entry(key);
+        return cached == null ? EMPTY : cached.bytes;
+    }
+
+    /**
+     * Returns the {@link ItemDictionary} id of an item key.
+     *
+     * @param key The AE2 item key.
+     * @return The boxed id, or null if the item has never been stored or cannot be serialized.
+     * @see Entry#itemId()
+     */
+    public static @Nullable Integer findItemId(AEItemKey key) {
+        Entry cached = entry(key);
+        return cached == null ? null : cached.itemId();
+    }
+
+    /**
+     * Returns the cache entry of an item key, encoding it only on a cache miss. Callers that need both the bytes
+     * and the dictionary id use this, so one cache probe serves both.
+     *
+     * @param key The AE2 item key.
+     * @return The entry, or null if the stack could not be serialized.
+     */
+    public static @Nullable Entry entry(AEItemKey key) {
+        Entry cached = young.get(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        cached = old.get(key);
+        if (cached != null) {
+            hits.increment();
+            put(key, cached);
+            return cached;
+        }
+        misses.increment();
+        byte[] bytes = EnderDiskInventory.serializeItemStackToBytes(key.toStack());
+        if (bytes.length == 0) {
+            return null;
+        }
+        cached = new Entry(bytes);
+        put(key, cached);
+        return cached;
+    }
+
+    private static void put(AEItemKey key, Entry cached) {
+        ConcurrentHashMap<AEItemKey, Entry> current = young;
+        current.put(key, cached);
+        if (current.size() >= generationSize()) {
+            synchronized (rotateLock) {
+                if (young == current) {
+                    old = current;
+                    young = new ConcurrentHashMap<>();
+                    rotations.increment();
+                }
+            }
+        }
+    }
+
+    private static int generationSize() {
+        return Math.max(1, serverConfig.END_DB_KEY_CACHE_SIZE.get() / 2);
+    }
+
+    /**
+     * Drops every cached encoding. Encodings depend on the server's registries, so this must be called
+     * whenever the server (and therefore the registry access) changes.
+     */
+    public static void clear() {
+        synchronized (rotateLock) {
+            young = new ConcurrentHashMap<>();
+            old = new ConcurrentHashMap<>();
+        }
+        hits.reset();
+        misses.reset();
+        rotations.reset();
+    }
+
+// ==== Metrics ====
+
+    public static long getHits() { return hits.sum(); }
+    public static long getMisses() { return misses.sum(); }
+    public static long getRotations() { return rotations.sum(); }
+    public static int getSize() { return young.size() + old.size(); }
+
+    public static double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+}
@@ -0,0 +1,545 @@
+package com.sts15.enderdrives.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes enderdrives.bin.
+ * <p>
+ * Version 2 layout:
+ * <pre>
+ * header  : int magic "EDBS", int version, int flags, int blockSize, int scopeCount, UTF scope * scopeCount
+ * block   : int rawLength, int storedLength, byte codec, int recordCount, int crc32c(stored), stored bytes
+ * record  : int scopeIndex, int freq, int itemId, long count
+ * index   : int blockCount, (long offset, int recordCount) * blockCount
+ * trailer : long indexOffset, int magic "EDBI"
+ * </pre>
+ * Blocks hold whole records and never exceed {@link #BLOCK_SIZE} raw bytes, so each block can be
+ * located through the index and decoded on its own. A damaged block only loses the records inside it.
+ * <p>
+ * Older files are still read: version 1 ("EDB1" followed by scope/freq/id/count records) and the
+ * original headerless format that stored the raw item bytes in every record.
+ */
+public final class SnapshotFormat {
+
+    private static final Logger LOGGER = LogManager.getLogger("EnderDrives");
+    public static final int VERSION = 2;
+    private static final int MAGIC = 0x45444253; // "EDBS"
+    private static final int MAGIC_V1 = 0x45444231; // "EDB1"
+    private static final int INDEX_MAGIC = 0x45444249; // "EDBI"
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int BLOCK_HEADER_SIZE = 4 + 4 + 1 + 4 + 4;
+    private static final int RECORD_SIZE = 4 + 4 + 4 + 8;
+    private static final int TRAILER_SIZE = 8 + 4;
+    private static final byte CODEC_NONE = 0;
+    private static final byte CODEC_DEFLATE = 1;
+
+    private SnapshotFormat() {}
+
+    /**
+     * Receives every record read from a snapshot.
+     */
+    @FunctionalInterface
+    public interface RecordSink {
+        void accept(String scope, int freq, int itemId, long count);
+    }
+
+    /**
+     * Summary of a snapshot load.
+     *
+     * @param version       The format version of the file (0 for the headerless format).
+     * @param records       The number of records read.
+     * @param blocks        The number of blocks read (0 before version 2).
+     * @param corruptBlocks The number of blocks skipped because they failed validation.
+     */
+    public record LoadResult(int version, long records, int blocks, int corruptBlocks) {
+        static final LoadResult EMPTY = new LoadResult(VERSION, 0, 0, 0);
+    }
+
+// ==== Writing ====
+
+    /**
+     * Figures of one snapshot write.
+     *
+     * @param records        The number of records written.
+     * @param blocks         The number of blocks written.
+     * @param bytes          The size of the written file.
+     * @param durationNanos  How long the write took, including the final force to disk.
+     * @param allocatedBytes Heap allocated by the writing thread during the write, or -1 if the JVM cannot measure it.
+     */
+    public record WriteStats(long records, int blocks, long bytes, long durationNanos, long allocatedBytes) {}
+
+    private static final Object writeLock = new Object();
+    private static BlockWriter writer;
+
+    /**
+     * Writes all channels to a file in the current format.
+     * Records are encoded straight from the channel maps into reused direct buffers, one block at a time,
+     * so the memory used does not grow with the size of the database. Writes are serialized.
+     *
+     * @param file       The file to write. It is overwritten.
+     * @param channels   The channels to write.
+     * @param compress   Whether blocks are Deflate-compressed when that makes them smaller.
+     * @return What was written and what it cost.
+     * @throws IOException if writing fails.
+     */
+    public static WriteStats write(File file, Collection<ChannelPartition> channels, boolean compress) throws IOException {
+        synchronized (writeLock) {
+            long start = System.nanoTime();
+            long allocatedBefore = threadAllocatedBytes();
+
+            Map<String, Integer> scopeIndex = new LinkedHashMap<>();
+            for (ChannelPartition partition : channels) {
+                scopeIndex.putIfAbsent(partition.channel().scope(), scopeIndex.size());
+            }
+            if (writer == null) {
+                writer = new BlockWriter();
+            }
+
+            try (FileChannel out = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writer.begin(out, compress);
+                writer.writeHeader(scopeIndex.keySet());
+                for (ChannelPartition partition : channels) {
+                    int scope = scopeIndex.get(partition.channel().scope());
+                    int freq = partition.channel().freq();
+                    try {
+                        partition.slots().forEach((itemId, slot) -> {
+                            long count = slot.count();
+                            if (count > 0) {
+                                writer.add(scope, freq, itemId, count);
+                            }
+                        });
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                }
+                writer.finish();
+                out.force(false);
+
+                long allocatedAfter = threadAllocatedBytes();
+                return new WriteStats(writer.records, writer.blockCount, writer.position,
+                        System.nanoTime() - start, allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore);
+            } finally {
+                writer.end();
+            }
+        }
+    }
+
+    private static long threadAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+            return bean.getThreadAllocatedBytes(Thread.currentThread().threadId());
+        }
+        return -1;
+    }
+
+    /**
+     * Packs records into blocks and writes the block index once all records are added.
+     * The buffers are allocated once and reused by every snapshot write.
+     */
+    private static final class BlockWriter {
+        private final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        private final ByteBuffer compressed = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        private final ByteBuffer blockHeader = ByteBuffer.allocateDirect(BLOCK_HEADER_SIZE);
+        private final ByteBuffer[] gather = new ByteBuffer[2];
+        private final CRC32C crc = new CRC32C();
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private long[] blockOffsets = new long[256];
+        private int[] blockRecordCounts = new int[256];
+        private FileChannel out;
+        private boolean compress;
+        private long position;
+        private int blockCount;
+        private int blockRecords;
+        private long records;
+
+        void begin(FileChannel out, boolean compress) {
+            this.out = out;
+            this.compress = compress;
+            this.position = 0;
+            this.blockCount = 0;
+            this.blockRecords = 0;
+            this.records = 0;
+            block.clear();
+        }
+
+        void end() {
+            out = null;
+        }
+
+        void writeHeader(Collection<String> scopes) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (DataOutputStream dos = new DataOutputStream(baos)) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(0);
+                dos.writeInt(BLOCK_SIZE);
+                dos.writeInt(scopes.size());
+                for (String scope : scopes) {
+                    dos.writeUTF(scope);
+                }
+            }
+            writeFully(ByteBuffer.wrap(baos.toByteArray()));
+        }
+
+        void add(int scope, int freq, int itemId, long count) {
+            try {
+                if (block.remaining() < RECORD_SIZE) {
+                    flushBlock();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            block.putInt(scope).putInt(freq).putInt(itemId).putLong(count);
+            blockRecords++;
+            records++;
+        }
+
+        void finish() throws IOException {
+            flushBlock();
+            long indexOffset = position;
+            block.putInt(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                if (block.remaining() < 12) {
+                    block.flip();
+                    writeFully(block);
+                    block.clear();
+                }
+                block.putLong(blockOffsets[i]).putInt(blockRecordCounts[i]);
+            }
+            if (block.remaining() < TRAILER_SIZE) {
+                block.flip();
+                writeFully(block);
+                block.clear();
+            }
+            block.putLong(indexOffset).putInt(INDEX_MAGIC);
+            block.flip();
+            writeFully(block);
+            block.clear();
+        }
+
+        private void flushBlock() throws IOException {
+            if (blockRecords == 0) return;
+            block.flip();
+            int rawLength = block.remaining();
+            ByteBuffer stored = block;
+            byte codec = CODEC_NONE;
+            if (compress) {
+                deflater.reset();
+                deflater.setInput(block);
+                deflater.finish();
+                compressed.clear();
+                deflater.deflate(compressed);
+                if (deflater.finished() && compressed.position() < rawLength) {
+                    compressed.flip();
+                    stored = compressed;
+                    codec = CODEC_DEFLATE;
+                } else {
+                    block.position(0);
+                }
+            }
+            int storedLength = stored.remaining();
+            crc.reset();
+            crc.update(stored);
+            stored.position(stored.limit() - storedLength);
+
+            if (blockCount == blockOffsets.length) {
+                blockOffsets = Arrays.copyOf(blockOffsets, blockCount * 2);
+                blockRecordCounts = Arrays.copyOf(blockRecordCounts, blockCount * 2);
+            }
+            blockOffsets[blockCount] = position;
+            blockRecordCounts[blockCount] = blockRecords;
+            blockCount++;
+
+            blockHeader.clear();
+            blockHeader.putInt(rawLength).putInt(storedLength).put(codec).putInt(blockRecords).putInt((int) crc.getValue());
+            blockHeader.flip();
+            gather[0] = blockHeader;
+            gather[1] = stored;
+            long remaining = BLOCK_HEADER_SIZE + storedLength;
+            while (remaining > 0) {
+                remaining -= out.write(gather);
+            }
+            position += BLOCK_HEADER_SIZE + storedLength;
+
+            block.clear();
+            blockRecords = 0;
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer);
+            }
+        }
+    }
+
+// ==== Reading ====
+
+    /**
+     * Reads a snapshot of any supported version on the calling thread.
+     *
+     * @param file The snapshot file.
+     * @param sink Receives every record.
+     * @return What was read.
+     * @throws IOException if the file cannot be opened or its header is unreadable.
+     */
+    public static LoadResult read(File file, RecordSink sink) throws IOException {
+        return read(file, () -> sink, null);
+    }
+
+    /**
+     * Reads a snapshot, decoding the blocks of a version 2 file in parallel. The block list is split into
+     * contiguous ranges, one task per range; since the writer emits channels one after another, a range
+     * usually covers only a few channels. Each task takes its own sink from the factory, and sinks may be
+     * called from several threads at once. Older formats are read sequentially on the calling thread.
+     *
+     * @param file        The snapshot file.
+     * @param sinkFactory Supplies one sink per decoding task.
+     * @param pool        The pool to decode on, or null to read on the calling thread.
+     * @return What was read.
+     * @throws IOException if the file cannot be opened or its header is unreadable.
+     */
+    public static LoadResult read(File file, Supplier<RecordSink> sinkFactory, ForkJoinPool pool) throws IOException {
+        if (!file.exists() || file.length() < 4) {
+            return LoadResult.EMPTY;
+        }
+        int magic;
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+            magic = dis.readInt();
+        }
+        if (magic == MAGIC) return readBlocks(file, sinkFactory, pool);
+        if (magic == MAGIC_V1) return readRecords(file, true, sinkFactory.get());
+        return readRecords(file, false, sinkFactory.get());
+    }
+
+    private static LoadResult readBlocks(File file, Supplier<RecordSink> sinkFactory, ForkJoinPool pool) throws IOException {
+        int version;
+        int blockSize;
+        String[] scopes;
+        long[] offsets;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readInt();
+            version = raf.readInt();
+            if (version > VERSION) {
+                throw new IOException("Snapshot " + file.getName() + " has unsupported version " + version);
+            }
+            raf.readInt(); // flags, none defined yet
+            blockSize = raf.readInt();
+            scopes = new String[raf.readInt()];
+            for (int i = 0; i < scopes.length; i++) {
+                scopes[i] = raf.readUTF();
+            }
+            long dataStart = raf.getFilePointer();
+
+            offsets = readIndex(raf, dataStart);
+            if (offsets == null) {
+                LOGGER.warn("Block index of {} is damaged, scanning blocks sequentially.", file.getName());
+                offsets = scanBlocks(raf, dataStart, blockSize);
+            }
+        }
+        if (blockSize <= 0 || blockSize > BLOCK_SIZE * 16) {
+            throw new IOException("Snapshot " + file.getName() + " has invalid block size " + blockSize);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int tasks = pool == null ? 1 : Math.min(offsets.length, pool.getParallelism() * 4);
+            if (tasks <= 1) {
+                long[] result = readBlockRange(channel, file, offsets, 0, offsets.length, blockSize, scopes, sinkFactory.get());
+                return new LoadResult(version, result[0], offsets.length - (int) result[1], (int) result[1]);
+            }
+            List<ForkJoinTask<long[]>> futures = new ArrayList<>(tasks);
+            final long[] blockOffsets = offsets;
+            for (int t = 0; t < tasks; t++) {
+                int from = (int) ((long) blockOffsets.length * t / tasks);
+                int to = (int) ((long) blockOffsets.length * (t + 1) / tasks);
+                futures.add(pool.submit(() -> {
+                    try {
+                        return readBlockRange(channel, file, blockOffsets, from, to, blockSize, scopes, sinkFactory.get());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            long records = 0;
+            int corrupt = 0;
+            for (ForkJoinTask<long[]> future : futures) {
+                long[] result = future.join();
+                records += result[0];
+                corrupt += (int) result[1];
+            }
+            return new LoadResult(version, records, offsets.length - corrupt, corrupt);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Decodes a contiguous range of blocks with buffers private to the calling task.
+     *
+     * @return The number of records read and the number of damaged blocks.
+     */
+    private static long[] readBlockRange(FileChannel channel, File file, long[] offsets, int from, int to, int blockSize,
+                                         String[] scopes, RecordSink sink) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        ByteBuffer stored = ByteBuffer.allocate(blockSize);
+        ByteBuffer raw = ByteBuffer.allocate(blockSize);
+        Inflater inflater = new Inflater();
+        CRC32C crc = new CRC32C();
+        long records = 0;
+        int corrupt = 0;
+        try {
+            for (int i = from; i < to; i++) {
+                try {
+                    records += readBlock(channel, offsets[i], blockSize, scopes, header, stored, raw, inflater, crc, sink);
+                } catch (DataFormatException | RuntimeException e) {
+                    LOGGER.error("Skipping damaged snapshot block at offset {} in {}: {}", offsets[i], file.getName(), e.toString());
+                    corrupt++;
+                } catch (IOException e) {
+                    if (!channel.isOpen()) throw e;
+                    LOGGER.error("Skipping damaged snapshot block at offset {} in {}: {}", offsets[i], file.getName(), e.toString());
+                    corrupt++;
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        return new long[]{records, corrupt};
+    }
+
+    private static long[] readIndex(RandomAccessFile raf, long dataStart) {
+        try {
+            long length = raf.length();
+            if (length < dataStart + 4 + TRAILER_SIZE) return null;
+            raf.seek(length - TRAILER_SIZE);
+            long indexOffset = raf.readLong();
+            if (raf.readInt() != INDEX_MAGIC || indexOffset < dataStart || indexOffset > length - TRAILER_SIZE - 4) {
+                return null;
+            }
+            raf.seek(indexOffset);
+            int blockCount = raf.readInt();
+            if (blockCount < 0 || (long) blockCount * 12 != length - TRAILER_SIZE - indexOffset - 4) {
+                return null;
+            }
+            long[] offsets = new long[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                offsets[i] = raf.readLong();
+                raf.readInt();
+            }
+            return offsets;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static long[] scanBlocks(RandomAccessFile raf, long dataStart, int blockSize) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        long length = raf.length();
+        long position = dataStart;
+        while (position + BLOCK_HEADER_SIZE <= length) {
+            raf.seek(position);
+            int rawLength = raf.readInt();
+            int storedLength = raf.readInt();
+            if (rawLength <= 0 || rawLength > blockSize || storedLength <= 0 || storedLength > rawLength
+                    || position + BLOCK_HEADER_SIZE + storedLength > length) {
+                break;
+            }
+            offsets.add(position);
+            position += BLOCK_HEADER_SIZE + storedLength;
+        }
+        return offsets.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    private static int readBlock(FileChannel channel, long offset, int blockSize, String[] scopes, ByteBuffer header,
+                                 ByteBuffer stored, ByteBuffer raw, Inflater inflater, CRC32C crc, RecordSink sink)
+            throws IOException, DataFormatException {
+        header.clear();
+        readFully(channel, header, offset);
+        header.flip();
+        int rawLength = header.getInt();
+        int storedLength = header.getInt();
+        byte codec = header.get();
+        int recordCount = header.getInt();
+        int storedCrc = header.getInt();
+        if (rawLength < 0 || rawLength > blockSize || storedLength < 0 || storedLength > rawLength
+                || (long) recordCount * RECORD_SIZE != rawLength) {
+            throw new IOException("invalid block header");
+        }
+        stored.clear().limit(storedLength);
+        readFully(channel, stored, offset + BLOCK_HEADER_SIZE);
+        crc.reset();
+        crc.update(stored.array(), 0, storedLength);
+        if ((int) crc.getValue() != storedCrc) {
+            throw new IOException("checksum mismatch");
+        }
+
+        ByteBuffer records;
+        switch (codec) {
+            case CODEC_NONE -> records = stored.flip();
+            case CODEC_DEFLATE -> {
+                inflater.reset();
+                inflater.setInput(stored.array(), 0, storedLength);
+                int inflated = inflater.inflate(raw.array(), 0, rawLength);
+                if (inflated != rawLength) throw new IOException("short block after inflate");
+                records = raw.clear().limit(rawLength);
+            }
+            default -> throw new IOException("unknown codec " + codec);
+        }
+        for (int i = 0; i < recordCount; i++) {
+            String scope = scopes[records.getInt()];
+            sink.accept(scope, records.getInt(), records.getInt(), records.getLong());
+        }
+        return recordCount;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("block extends past the end of the file");
+            position += read;
+        }
+    }
+
+    /**
+     * Reads the record-stream formats used before version 2. Reading stops at the first damaged record.
+     */
+    private static LoadResult readRecords(File file, boolean v1, RecordSink sink) throws IOException {
+        long records = 0;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (v1) dis.readInt();
+            while (true) {
+                try {
+                    String scope = dis.readUTF();
+                    int freq = dis.readInt();
+                    int itemId;
+                    if (v1) {
+                        itemId = dis.readInt();
+                    } else {
+                        byte[] keyBytes = new byte[dis.readInt()];
+                        dis.readFully(keyBytes);
+                        itemId = ItemDictionary.intern(keyBytes);
+                    }
+                    sink.accept(scope, freq, itemId, dis.readLong());
+                    records++;
+                } catch (Exception ex) {
+                    break;
+                }
+            }
+        }
+        return new LoadResult(v1 ? 1 : 0, records, 0, 0);
+    }
+}
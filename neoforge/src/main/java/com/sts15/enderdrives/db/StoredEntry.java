@@ -2,6 +2,14 @@ package com.sts15.enderdrives.db;
 
 import appeng.api.stacks.AEItemKey;
 
-public record StoredEntry(long count, AEItemKey aeKey) {
-    public static final StoredEntry EMPTY = new StoredEntry(0L, null);
+public record StoredEntry(long count, LazyItemKey itemKey) {
+    public static final StoredEntry EMPTY = new StoredEntry(0L, LazyItemKey.EMPTY);
+
+    public StoredEntry(long count, AEItemKey aeKey) {
+        this(count, LazyItemKey.of(aeKey));
+    }
+
+    public AEItemKey aeKey() {
+        return itemKey.get();
+    }
 }
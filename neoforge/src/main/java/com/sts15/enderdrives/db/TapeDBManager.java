@@ -10,9 +10,11 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.CRC32;
 
 import static com.sts15.enderdrives.items.TapeDiskItem.deserializeItemStackFromBytes;
@@ -22,21 +24,44 @@ public class TapeDBManager {
     private static final Logger LOGGER = LogManager.getLogger("EnderDrives-TapeDB");
     private static final Map<UUID, TapeDriveCache> activeCaches = new ConcurrentHashMap<>();
     private static final Set<UUID> pinnedTapes = ConcurrentHashMap.newKeySet();
-    private static ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private static final Object lifecycleLock = new Object();
+    private static final Object maintenanceLock = new Object();
+    private static final List<ScheduledFuture<?>> scheduledTasks = new ArrayList<>();
+    private static final Map<UUID, CompletableFuture<TapeDriveCache>> pendingLoads = new ConcurrentHashMap<>();
+    private static volatile boolean running = false;
+    private static final AtomicBoolean walCommitQueued = new AtomicBoolean(false);
+    private static boolean shutdownHookRegistered = false;
     private static final int FLUSH_THRESHOLD = serverConfig.TAPE_DB_FLUSH_THRESHOLD.get();
     private static final long FLUSH_INTERVAL = serverConfig.TAPE_DB_FLUSH_INTERVAL.get();
     private static final long EVICTION_THRESHOLD = serverConfig.TAPE_DB_RAM_EVICT_TIMEOUT.get();
+    private static final WalDurability WAL_DURABILITY = serverConfig.END_DB_WAL_DURABILITY.get();
+    private static final long WAL_FSYNC_INTERVAL = serverConfig.END_DB_WAL_FSYNC_INTERVAL_MS.get();
     private static final int PAGE_SIZE = 10000;
     private static final double BYTE_COST_MULTIPLIER = 0.75;
     static boolean debug_log = serverConfig.TAPE_DB_DEBUG_LOG.get();
 
-    public static void init() {
-        if (executor.isShutdown() || executor.isTerminated()) {
-            executor = Executors.newSingleThreadScheduledExecutor();
+    /**
+     * Schedules the flush/eviction task on the EnderDrives flush lane when the server starts.
+     * A second call while running is ignored.
+     */
+    public static void start() {
+        synchronized (lifecycleLock) {
+            if (running) {
+                LOGGER.warn("TapeDB is already running, ignoring start request.");
+                return;
+            }
+            if (!shutdownHookRegistered) {
+                shutdownHookRegistered = true;
+                // Covers a JVM exit without a server stop; does nothing once stop() has run.
+                Runtime.getRuntime().addShutdownHook(new Thread(TapeDBManager::stop, "TapeDB-ShutdownHook"));
+            }
+            scheduledTasks.add(EnderExecutors.schedule(EnderExecutors.Lane.FLUSH, TapeDBManager::flushAndEvict, FLUSH_INTERVAL));
+            if (WAL_DURABILITY == WalDurability.INTERVAL_FSYNC) {
+                scheduledTasks.add(EnderExecutors.schedule(EnderExecutors.Lane.FLUSH, TapeDBManager::syncWals, WAL_FSYNC_INTERVAL));
+            }
+            running = true;
+            log("TapeDBManager started.");
         }
-        Runtime.getRuntime().addShutdownHook(new Thread(TapeDBManager::flushAll));
-        executor.scheduleAtFixedRate(TapeDBManager::flushAndEvict, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
-        log("TapeDBManager initialized.");
     }
 
     public static TapeDriveCache getCache(UUID diskId) {
@@ -51,13 +76,31 @@ public class TapeDBManager {
         return activeCaches.computeIfAbsent(diskId, TapeDBManager::loadFromDisk);
     }
 
+    /**
+     * Loads a tape on the EnderDrives load lane, so it does not wait behind flushes.
+     * A tape that is already being loaded is not loaded twice; callers share the running load.
+     *
+     * @param diskId The tape.
+     * @return The loaded cache.
+     */
     public static CompletableFuture<TapeDriveCache> loadFromDiskAsync(UUID diskId) {
-        return CompletableFuture.supplyAsync(() -> {
-            TapeDriveCache cache = loadFromDisk(diskId);
-            activeCaches.put(diskId, cache);
-            notifyAE2StorageChanged(diskId);
-            return cache;
-        }, executor);
+        if (!running) {
+            return CompletableFuture.failedFuture(new IllegalStateException("TapeDB is not running"));
+        }
+        try {
+            return pendingLoads.computeIfAbsent(diskId, id -> {
+                CompletableFuture<TapeDriveCache> load = EnderExecutors.supply(EnderExecutors.Lane.LOAD, () -> {
+                    TapeDriveCache cache = loadFromDisk(id);
+                    activeCaches.put(id, cache);
+                    notifyAE2StorageChanged(id);
+                    return cache;
+                });
+                load.whenComplete((cache, error) -> pendingLoads.remove(id, load));
+                return load;
+            });
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(new IllegalStateException("TapeDB is not running", e));
+        }
     }
 
     private static void notifyAE2StorageChanged(UUID diskId) {
@@ -121,6 +164,7 @@ public class TapeDBManager {
         TapeDriveCache cache = activeCaches.remove(id);
         if (cache != null) {
             flush(id, cache);
+            closeWal(id, cache);
             log("Manually released tape {} from RAM", id);
         }
     }
@@ -147,12 +191,22 @@ public class TapeDBManager {
             }
         }
 
-        File wal = getWalFile(diskId);
-        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(wal, true))) {
-            dos.writeInt(itemBytes.length);
-            dos.write(itemBytes);
-            dos.writeLong(delta);
-            dos.writeLong(checksum(itemBytes, delta));
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + itemBytes.length + Long.BYTES * 2);
+        record.putInt(itemBytes.length);
+        record.put(itemBytes);
+        record.putLong(delta);
+        record.putLong(checksum(itemBytes, delta));
+        record.flip();
+        try {
+            WalEngine wal = openWal(diskId, cache);
+            if (WAL_DURABILITY == WalDurability.ASYNC) {
+                // Only appended here; the flush lane commits every tape's pending records as one batch.
+                wal.append(record, 1);
+                requestWalCommit();
+            } else {
+                // The other modes promise a written (or forced) record once the change is acknowledged.
+                wal.write(record);
+            }
             cache.totalBytes += itemBytes.length * delta;
         } catch (IOException e) {
             LOGGER.error("Failed to write WAL for disk {}: {}", diskId, e.getMessage());
@@ -163,6 +217,37 @@ public class TapeDBManager {
         }
     }
 
+    /**
+     * Queues a commit of the records appended to tape WALs on the flush lane, unless one is already queued.
+     * Tape writes made while it waits are covered by the same commit. Only used in {@link WalDurability#ASYNC}
+     * mode, which makes no promise about when a record reaches the file.
+     */
+    private static void requestWalCommit() {
+        if (!walCommitQueued.compareAndSet(false, true)) return;
+        try {
+            EnderExecutors.submit(EnderExecutors.Lane.FLUSH, TapeDBManager::commitPendingWals);
+        } catch (RejectedExecutionException e) {
+            commitPendingWals();
+        }
+    }
+
+    /**
+     * Commits the records appended to each loaded tape's WAL, one write per tape.
+     */
+    private static void commitPendingWals() {
+        // Cleared first, so a record appended from here on queues another commit.
+        walCommitQueued.set(false);
+        for (var entry : activeCaches.entrySet()) {
+            WalEngine wal = entry.getValue().wal;
+            if (wal == null) continue;
+            try {
+                wal.commitAll();
+            } catch (IOException e) {
+                LOGGER.error("Failed to write WAL for disk {}: {}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
     public static void flushAll() {
         for (var entry : activeCaches.entrySet()) {
             flush(entry.getKey(), entry.getValue());
@@ -171,6 +256,12 @@ public class TapeDBManager {
     }
 
     public static void flushAndEvict() {
+        synchronized (maintenanceLock) {
+            flushAndEvictLocked();
+        }
+    }
+
+    private static void flushAndEvictLocked() {
         long now = System.currentTimeMillis();
         List<UUID> toEvict = new ArrayList<>();
         for (var entry : activeCaches.entrySet()) {
@@ -182,21 +273,68 @@ public class TapeDBManager {
             }
         }
         for (UUID id : toEvict) {
-            activeCaches.remove(id);
+            TapeDriveCache cache = activeCaches.remove(id);
+            if (cache != null) {
+                closeWal(id, cache);
+            }
             log("Evicted tape %s from RAM due to inactivity", id);
         }
     }
 
+    /**
+     * Forces the WALs of loaded tapes whose fsync interval has passed.
+     * Scheduled on the flush lane when the durability mode is {@link WalDurability#INTERVAL_FSYNC}.
+     */
+    private static void syncWals() {
+        synchronized (maintenanceLock) {
+            syncWalsLocked();
+        }
+    }
 
-    public static void shutdown() {
-        try {
-            flushAll();
-            executor.shutdown();
-            executor.awaitTermination(5, TimeUnit.SECONDS);
-        } catch (Exception e) {
-            executor.shutdownNow();
+    private static void syncWalsLocked() {
+        for (var entry : activeCaches.entrySet()) {
+            WalEngine wal = entry.getValue().wal;
+            if (wal == null) continue;
+            try {
+                wal.syncIfDue();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to sync WAL for disk {}: {}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Cancels the scheduled tasks when the server stops and waits for running loads and flushes,
+     * then flushes every loaded tape and closes its WAL. Does nothing if TapeDB is not running.
+     */
+    public static void stop() {
+        synchronized (lifecycleLock) {
+            if (!running) return;
+            running = false;
+            for (ScheduledFuture<?> task : scheduledTasks) {
+                task.cancel(false);
+            }
+            scheduledTasks.clear();
+            for (CompletableFuture<TapeDriveCache> load : pendingLoads.values()) {
+                try {
+                    load.get(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | TimeoutException e) {
+                    LOGGER.warn("Tape load did not finish cleanly before shutdown: {}", e.toString());
+                }
+            }
+            // Waits for a flush that is still running on the flush lane.
+            synchronized (maintenanceLock) {
+                flushAll();
+                for (var entry : activeCaches.entrySet()) {
+                    closeWal(entry.getKey(), entry.getValue());
+                }
+                activeCaches.clear();
+            }
+            log("TapeDBManager stopped.");
         }
-        activeCaches.clear();
     }
 
     private static TapeDriveCache loadFromDisk(UUID diskId) {
@@ -277,7 +415,10 @@ public class TapeDBManager {
             } catch (EOFException ignored) {} catch (IOException e) {
                 LOGGER.warn("Failed WAL replay for disk {}: {}", diskId, e.getMessage());
             }
-            walFile.delete();
+            // Fold the replayed changes into the base file before dropping the WAL that holds them.
+            if (writeBaseFile(diskId, cache)) {
+                walFile.delete();
+            }
         }
 
         cache.lastAccessed = System.currentTimeMillis();
@@ -292,7 +433,7 @@ public class TapeDBManager {
         for (var entry : cache.deltaBuffer.entrySet()) {
             TapeKey key = entry.getKey();
             long delta = entry.getValue();
-            StoredEntry current = cache.entries.getOrDefault(key, new StoredEntry(0, null));
+            StoredEntry current = cache.entries.getOrDefault(key, StoredEntry.EMPTY);
             long updated = current.count() + delta;
             if (updated <= 0) {
                 cache.entries.remove(key);
@@ -309,21 +450,82 @@ public class TapeDBManager {
         }
         cache.deltaBuffer.clear();
 
-        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(getDiskFile(diskId)))) {
+        if (!writeBaseFile(diskId, cache)) return;
+
+        try {
+            WalEngine wal = cache.wal;
+            if (wal != null) {
+                // Records appended but not yet committed are dropped too; their deltas were in the buffer
+                // folded into the base file above.
+                wal.truncate();
+            } else {
+                try (FileOutputStream fos = new FileOutputStream(getWalFile(diskId))) {
+                    // Truncate
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to clear WAL for disk {}: {}", diskId, e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrites the base file of a tape from its committed entries. Unless the WAL durability mode is
+     * {@link WalDurability#ASYNC}, the file is forced before the WAL that it replaces may be cleared.
+     *
+     * @param diskId The tape.
+     * @param cache  The tape's cache.
+     * @return true if the file was written.
+     */
+    private static boolean writeBaseFile(UUID diskId, TapeDriveCache cache) {
+        try (FileOutputStream fos = new FileOutputStream(getDiskFile(diskId));
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos))) {
             for (var entry : cache.entries.entrySet()) {
                 byte[] data = entry.getKey().itemBytes();
                 dos.writeInt(data.length);
                 dos.write(data);
                 dos.writeLong(entry.getValue().count());
             }
+            dos.flush();
+            if (WAL_DURABILITY != WalDurability.ASYNC) {
+                fos.getFD().sync();
+            }
+            return true;
         } catch (IOException e) {
             LOGGER.warn("Flush failed for disk {}: {}", diskId, e.getMessage());
+            return false;
         }
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(getWalFile(diskId))) {
-            // Truncate
+    /**
+     * Returns the WAL engine of a tape, opening it on first use.
+     *
+     * @param diskId The tape.
+     * @param cache  The tape's cache.
+     * @return The open engine.
+     * @throws IOException if the WAL file cannot be opened.
+     */
+    private static WalEngine openWal(UUID diskId, TapeDriveCache cache) throws IOException {
+        WalEngine wal = cache.wal;
+        if (wal != null) return wal;
+        synchronized (cache) {
+            if (cache.wal == null) {
+                cache.wal = WalEngine.open(getWalFile(diskId), WAL_DURABILITY, WAL_FSYNC_INTERVAL);
+            }
+            return cache.wal;
+        }
+    }
+
+    private static void closeWal(UUID diskId, TapeDriveCache cache) {
+        WalEngine wal;
+        synchronized (cache) {
+            wal = cache.wal;
+            cache.wal = null;
+        }
+        if (wal == null) return;
+        try {
+            wal.close();
         } catch (IOException e) {
-            LOGGER.warn("Failed to clear WAL for disk {}: {}", diskId, e.getMessage());
+            LOGGER.warn("Failed to close WAL for disk {}: {}", diskId, e.getMessage());
         }
     }
 
@@ -545,6 +747,7 @@ public class TapeDBManager {
         public final ConcurrentHashMap<TapeKey, Long> deltaBuffer = new ConcurrentHashMap<>();
         public volatile long lastAccessed = System.currentTimeMillis();
         public long totalBytes = 0;
+        volatile WalEngine wal;
     }
 
     private static void log(String format, Object... args) {
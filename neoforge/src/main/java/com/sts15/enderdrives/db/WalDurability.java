@@ -0,0 +1,13 @@
+package com.sts15.enderdrives.db;
+
+/**
+ * How hard a {@link WalEngine} works to get committed records onto stable storage.
+ */
+public enum WalDurability {
+    /** Records are handed to the OS on commit and never forced; a power loss can drop recent records. */
+    ASYNC,
+    /** Records are handed to the OS on commit and forced in the background at a fixed interval. */
+    INTERVAL_FSYNC,
+    /** Every commit batch is forced before the committing threads return. */
+    FSYNC_PER_BATCH
+}
@@ -0,0 +1,436 @@
+package com.sts15.enderdrives.db;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only write-ahead log file with group commit, shared by EnderDB and TapeDB.
+ * <p>
+ * Writers {@link #append} already framed records into an in-memory batch and then {@link #commit} up to the
+ * sequence number they were given. The first committer to find no write in progress becomes the leader: it takes
+ * the whole batch, including records appended by other threads in the meantime, and hands it to the file in one
+ * write (plus one force when the durability mode asks for it). Committers arriving while a leader is writing wait
+ * and are usually covered by the next batch, so concurrent writers share a single write+force.
+ * <p>
+ * The engine does not interpret record contents. A failed write leaves the engine failed; every later call
+ * throws until the owner opens a new engine (EnderDB does that at the next WAL rotation).
+ */
+public final class WalEngine implements Closeable {
+
+    private static final int INITIAL_BATCH_CAPACITY = 64 * 1024;
+    private static final Map<WalDurability, Metrics> METRICS = new EnumMap<>(WalDurability.class);
+
+    static {
+        for (WalDurability mode : WalDurability.values()) {
+            METRICS.put(mode, new Metrics());
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final WalDurability durability;
+    private final long fsyncIntervalNanos;
+    private final Metrics metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchDone = lock.newCondition();
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BATCH_CAPACITY);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BATCH_CAPACITY);
+    private int pendingRecords = 0;
+    private long appendedSeq = 0;
+    private long writtenSeq = 0;
+    private boolean leaderActive = false;
+    private boolean closed = false;
+    private IOException failure;
+
+    private volatile boolean unsynced = false;
+    private volatile long lastForceNanos = System.nanoTime();
+
+    private WalEngine(File file, FileChannel channel, WalDurability durability, long fsyncIntervalMs) {
+        this.file = file;
+        this.channel = channel;
+        this.durability = durability;
+        this.fsyncIntervalNanos = Math.max(1L, fsyncIntervalMs) * 1_000_000L;
+        this.metrics = METRICS.get(durability);
+    }
+
+    /**
+     * Opens a log file for appending, creating it if needed.
+     *
+     * @param file            The log file.
+     * @param durability      When committed records are forced to disk.
+     * @param fsyncIntervalMs The background force interval used by {@link WalDurability#INTERVAL_FSYNC}.
+     * @return The engine, positioned at the end of the file.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static WalEngine open(File file, WalDurability durability, long fsyncIntervalMs) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return new WalEngine(file, channel, durability, fsyncIntervalMs);
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public WalDurability durability() {
+        return durability;
+    }
+
+    /**
+     * Returns the number of bytes in the file, not counting records that are appended but not yet committed.
+     *
+     * @return The file size in bytes.
+     * @throws IOException if the size cannot be read.
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    // ==== Appending ====
+
+    /**
+     * Adds one or more complete records to the current batch. Nothing reaches the file until a commit.
+     *
+     * @param records The bytes between position and limit; the buffer's position is advanced.
+     * @param count   The number of records contained, for batch statistics.
+     * @return The sequence number to pass to {@link #commit(long)}.
+     * @throws IOException if the engine has failed or is closed.
+     */
+    public long append(ByteBuffer records, int count) throws IOException {
+        lock.lock();
+        try {
+            ensureUsable();
+            if (pending.remaining() < records.remaining()) {
+                pending = grow(pending, records.remaining());
+            }
+            pending.put(records);
+            pendingRecords += count;
+            return ++appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a single record and commits it.
+     *
+     * @param record The framed record.
+     * @throws IOException if the write fails.
+     */
+    public void write(ByteBuffer record) throws IOException {
+        commit(append(record, 1));
+    }
+
+    /**
+     * Blocks until every record up to the given sequence number has been written, and forced if the durability
+     * mode is {@link WalDurability#FSYNC_PER_BATCH}. Either writes the batch itself or waits for the thread that does.
+     *
+     * @param seq A sequence number returned by {@link #append}.
+     * @throws IOException if the batch containing the records could not be written.
+     */
+    public void commit(long seq) throws IOException {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            while (writtenSeq < seq) {
+                ensureNotFailed();
+                if (leaderActive) {
+                    batchDone.awaitUninterruptibly();
+                    continue;
+                }
+                writeBatch();
+            }
+        } finally {
+            lock.unlock();
+        }
+        metrics.recordCommit(System.nanoTime() - start);
+    }
+
+    /**
+     * Commits everything appended so far.
+     *
+     * @throws IOException if the write fails.
+     */
+    public void commitAll() throws IOException {
+        long seq;
+        lock.lock();
+        try {
+            seq = appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+        if (seq > 0) {
+            commit(seq);
+        }
+    }
+
+    /**
+     * Writes the current batch as leader. Called with the lock held; releases it during I/O.
+     */
+    private void writeBatch() throws IOException {
+        leaderActive = true;
+        ByteBuffer batch = pending;
+        int records = pendingRecords;
+        long batchEnd = appendedSeq;
+        pending = spare;
+        spare = null;
+        pendingRecords = 0;
+        lock.unlock();
+
+        IOException error = null;
+        long writeNanos = 0L;
+        long forceNanos = -1L;
+        try {
+            long t0 = System.nanoTime();
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            long t1 = System.nanoTime();
+            writeNanos = t1 - t0;
+            if (durability == WalDurability.FSYNC_PER_BATCH) {
+                channel.force(false);
+                lastForceNanos = System.nanoTime();
+                forceNanos = lastForceNanos - t1;
+            } else {
+                unsynced = true;
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            lock.lock();
+            batch.clear();
+            spare = batch.capacity() > INITIAL_BATCH_CAPACITY * 16L ? ByteBuffer.allocate(INITIAL_BATCH_CAPACITY) : batch;
+            leaderActive = false;
+            if (error != null) {
+                failure = error;
+            } else {
+                writtenSeq = batchEnd;
+            }
+            batchDone.signalAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (records > 0) {
+            metrics.recordBatch(records, writeNanos, forceNanos);
+        }
+    }
+
+    // ==== Syncing ====
+
+    /**
+     * Returns whether committed records are waiting for a background force.
+     *
+     * @return true if {@link #syncIfDue()} has work to do once the interval has passed.
+     */
+    public boolean needsSync() {
+        return durability == WalDurability.INTERVAL_FSYNC && unsynced;
+    }
+
+    /**
+     * Returns when the next background force is due.
+     *
+     * @return A {@link System#nanoTime()} deadline, or {@link Long#MAX_VALUE} if nothing is waiting to be forced.
+     */
+    public long syncDeadlineNanos() {
+        return needsSync() ? lastForceNanos + fsyncIntervalNanos : Long.MAX_VALUE;
+    }
+
+    /**
+     * Forces committed records to disk if the mode is {@link WalDurability#INTERVAL_FSYNC} and the interval has
+     * passed. Meant to be called from a background thread, never from the server thread.
+     *
+     * @throws IOException if the force fails.
+     */
+    public void syncIfDue() throws IOException {
+        if (needsSync() && System.nanoTime() - lastForceNanos >= fsyncIntervalNanos) {
+            sync();
+        }
+    }
+
+    /**
+     * Forces everything written so far to disk, whatever the durability mode.
+     *
+     * @throws IOException if the force fails.
+     */
+    public void sync() throws IOException {
+        unsynced = false;
+        long start = System.nanoTime();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            unsynced = true;
+            throw e;
+        }
+        lastForceNanos = System.nanoTime();
+        metrics.recordForce(lastForceNanos - start);
+    }
+
+    // ==== Lifecycle ====
+
+    /**
+     * Discards the whole log, including records that are appended but not committed.
+     * Used once the records have been folded into a snapshot.
+     *
+     * @throws IOException if truncating fails.
+     */
+    public void truncate() throws IOException {
+        lock.lock();
+        try {
+            while (leaderActive) {
+                batchDone.awaitUninterruptibly();
+            }
+            ensureUsable();
+            pending.clear();
+            pendingRecords = 0;
+            writtenSeq = appendedSeq;
+            channel.truncate(0);
+            channel.position(0);
+            unsynced = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Commits outstanding records, forces the file unless the mode is {@link WalDurability#ASYNC}, and closes it.
+     * A failed engine is closed without writing.
+     *
+     * @throws IOException if the final write or force fails; the file is closed regardless.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!isFailed()) {
+                commitAll();
+                if (durability != WalDurability.ASYNC && unsynced) {
+                    sync();
+                }
+            }
+        } finally {
+            lock.lock();
+            try {
+                closed = true;
+            } finally {
+                lock.unlock();
+            }
+            channel.close();
+        }
+    }
+
+    private boolean isFailed() {
+        lock.lock();
+        try {
+            return failure != null || closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ensureUsable() throws IOException {
+        if (closed) {
+            throw new IOException("WAL " + file.getName() + " is closed");
+        }
+        ensureNotFailed();
+    }
+
+    private void ensureNotFailed() throws IOException {
+        if (failure != null) {
+            throw new IOException("WAL " + file.getName() + " failed earlier", failure);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int needed) {
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < needed) {
+            capacity *= 2;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    // ==== Metrics ====
+
+    /**
+     * Returns the accumulated latency figures of every engine running in the given mode.
+     *
+     * @param durability The durability mode.
+     * @return A snapshot of the figures.
+     */
+    public static MetricsSnapshot metrics(WalDurability durability) {
+        return METRICS.get(durability).snapshot(durability);
+    }
+
+    /**
+     * Latency figures of one durability mode since startup.
+     *
+     * @param durability    The mode.
+     * @param commits       Number of commit calls.
+     * @param avgCommitNanos Average time a commit call blocked.
+     * @param maxCommitNanos Longest time a commit call blocked.
+     * @param batches       Number of batches written.
+     * @param avgBatchRecords Average records per batch.
+     * @param avgWriteNanos Average time to write one batch.
+     * @param forces        Number of forces, per batch or in the background.
+     * @param avgForceNanos Average time of one force.
+     */
+    public record MetricsSnapshot(WalDurability durability, long commits, long avgCommitNanos, long maxCommitNanos,
+                                  long batches, double avgBatchRecords, long avgWriteNanos,
+                                  long forces, long avgForceNanos) {}
+
+    private static final class Metrics {
+        private final LongAdder commits = new LongAdder();
+        private final LongAdder commitNanos = new LongAdder();
+        private final AtomicLong maxCommitNanos = new AtomicLong();
+        private final LongAdder batches = new LongAdder();
+        private final LongAdder batchRecords = new LongAdder();
+        private final LongAdder writeNanos = new LongAdder();
+        private final LongAdder forces = new LongAdder();
+        private final LongAdder forceNanos = new LongAdder();
+
+        void recordCommit(long nanos) {
+            commits.increment();
+            commitNanos.add(nanos);
+            maxCommitNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        void recordBatch(int records, long write, long force) {
+            batches.increment();
+            batchRecords.add(records);
+            writeNanos.add(write);
+            if (force >= 0) {
+                recordForce(force);
+            }
+        }
+
+        void recordForce(long nanos) {
+            forces.increment();
+            forceNanos.add(nanos);
+        }
+
+        MetricsSnapshot snapshot(WalDurability durability) {
+            long c = commits.sum();
+            long b = batches.sum();
+            long f = forces.sum();
+            return new MetricsSnapshot(durability, c,
+                    c == 0 ? 0L : commitNanos.sum() / c, maxCommitNanos.get(),
+                    b, b == 0 ? 0.0 : (double) batchRecords.sum() / b, b == 0 ? 0L : writeNanos.sum() / b,
+                    f, f == 0 ? 0L : forceNanos.sum() / f);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.sts15.enderdrives.db;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Compact EnderDB WAL encoding (v3, magic "EDW3").
+ * <p>
+ * After the header the file is a sequence of frames, one per committed batch:
+ * int payloadLength, int crc32c(payload), payload. A frame is applied entirely or not at all; a torn
+ * frame at the end of the file marks the end of the log. A damaged frame in the middle is skipped on its own.
+ * <p>
+ * The payload is a sequence of entries, each starting with a tag byte:
+ * <ul>
+ *   <li>{@code SCOPE}: varint scopeId, varint byteLength, UTF-8 scope name. It defines a scope id for the rest of the frame.</li>
+ *   <li>{@code UPDATE}: varint scopeId, varint freq, varint itemId, varlong count. It sets the absolute count of an item.</li>
+ *   <li>{@code DROP}: varint scopeId, varint freq. It removes every item of the channel.</li>
+ * </ul>
+ * Scope ids are local to one frame, so every frame decodes on its own; a scope name costs a few dozen bytes once
+ * per batch instead of once per record. Item ids come from {@link ItemDictionary}, which is flushed before any
+ * batch that references them.
+ */
+public final class WalFormat {
+
+    public static final int MAGIC = 0x45445733; // "EDW3"
+    private static final byte TAG_SCOPE = 1;
+    private static final byte TAG_UPDATE = 2;
+    private static final byte TAG_DROP = 3;
+    private static final int FRAME_HEADER = Integer.BYTES * 2;
+    private static final int MAX_UPDATE_BYTES = 1 + 5 + 5 + 5 + 10;
+    private static final int MAX_FRAME_PAYLOAD = 64 * 1024 * 1024;
+
+    private WalFormat() {}
+
+    /**
+     * Item id of an update that drops its whole channel.
+     */
+    public static final int DROP_CHANNEL = -1;
+
+    /**
+     * A change waiting in the WAL queue: the new absolute count of an item in a channel,
+     * or a tombstone for the whole channel if {@code itemId} is {@link #DROP_CHANNEL}.
+     *
+     * @param scope  The scope name.
+     * @param freq   The frequency.
+     * @param itemId The item dictionary id, or {@link #DROP_CHANNEL}.
+     * @param count  The new count; 0 removes the item. Unused for a drop.
+     */
+    public record Update(String scope, int freq, int itemId, long count) {
+
+        /**
+         * Creates a tombstone that removes every item of a channel.
+         *
+         * @param scope The scope name.
+         * @param freq  The frequency.
+         * @return The update.
+         */
+        public static Update dropChannel(String scope, int freq) {
+            return new Update(scope, freq, DROP_CHANNEL, 0L);
+        }
+
+        public boolean isChannelDrop() {
+            return itemId == DROP_CHANNEL;
+        }
+    }
+
+    /**
+     * Receives replayed updates. A channel drop arrives with {@link #DROP_CHANNEL} as its item id.
+     */
+    @FunctionalInterface
+    public interface UpdateSink {
+        void accept(String scope, int freq, int itemId, long count);
+    }
+
+    // ==== Encoding ====
+
+    /**
+     * Encodes batches into frames, reusing its scope table and output buffer between batches.
+     * Not thread-safe; EnderDB only uses it under the commit lock.
+     */
+    public static final class Encoder {
+        private final Map<String, Integer> scopeIds = new HashMap<>();
+        private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+        /**
+         * Encodes a batch into a single frame in one pass over the updates.
+         *
+         * @param batch The updates, in the order they were applied.
+         * @return A buffer positioned at the frame and limited to its end. It is reused by the next call.
+         */
+        public ByteBuffer encode(List<Update> batch) {
+            scopeIds.clear();
+            ByteBuffer out = buffer;
+            out.clear();
+            out.position(FRAME_HEADER);
+            for (Update update : batch) {
+                Integer scopeId = scopeIds.get(update.scope());
+                if (scopeId == null) {
+                    scopeId = scopeIds.size();
+                    scopeIds.put(update.scope(), scopeId);
+                    byte[] name = update.scope().getBytes(StandardCharsets.UTF_8);
+                    out = ensure(out, 1 + 10 + name.length);
+                    out.put(TAG_SCOPE);
+                    putVarLong(out, scopeId);
+                    putVarLong(out, name.length);
+                    out.put(name);
+                }
+                out = ensure(out, MAX_UPDATE_BYTES);
+                if (update.isChannelDrop()) {
+                    out.put(TAG_DROP);
+                    putVarLong(out, scopeId);
+                    putVarLong(out, update.freq() & 0xFFFFFFFFL);
+                    continue;
+                }
+                out.put(TAG_UPDATE);
+                putVarLong(out, scopeId);
+                putVarLong(out, update.freq() & 0xFFFFFFFFL);
+                putVarLong(out, update.itemId() & 0xFFFFFFFFL);
+                putVarLong(out, update.count());
+            }
+            int end = out.position();
+            int payloadLength = end - FRAME_HEADER;
+            CRC32C crc = new CRC32C();
+            crc.update(out.array(), out.arrayOffset() + FRAME_HEADER, payloadLength);
+            out.putInt(0, payloadLength);
+            out.putInt(Integer.BYTES, (int) crc.getValue());
+            out.position(0);
+            out.limit(end);
+            buffer = out;
+            return out;
+        }
+
+        private static ByteBuffer ensure(ByteBuffer out, int needed) {
+            if (out.remaining() >= needed) return out;
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + needed));
+            out.flip();
+            larger.put(out);
+            return larger;
+        }
+    }
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    // ==== Decoding ====
+
+    /**
+     * Replays the frames of a v3 WAL file. The stream must be positioned just after the magic.
+     * Frames failing their checksum are skipped; a truncated frame ends the replay.
+     *
+     * @param dis      The stream.
+     * @param fileName The file name, for log messages.
+     * @param sink     Receives every update in file order.
+     * @return The number of frames that were skipped because they were damaged.
+     * @throws IOException if reading fails for a reason other than the end of the file.
+     */
+    public static int read(DataInputStream dis, String fileName, UpdateSink sink) throws IOException {
+        List<String> scopes = new ArrayList<>();
+        List<Update> frame = new ArrayList<>();
+        CRC32C crc = new CRC32C();
+        byte[] payload = new byte[0];
+        int damaged = 0;
+        while (true) {
+            int length;
+            int storedCrc;
+            try {
+                length = dis.readInt();
+                storedCrc = dis.readInt();
+            } catch (EOFException eof) {
+                return damaged;
+            }
+            if (length < 0 || length > MAX_FRAME_PAYLOAD) {
+                // A garbage length means the rest of the file cannot be framed any more.
+                return damaged + 1;
+            }
+            if (payload.length < length) {
+                payload = new byte[length];
+            }
+            try {
+                dis.readFully(payload, 0, length);
+            } catch (EOFException eof) {
+                // Torn write of the last batch.
+                return damaged;
+            }
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != storedCrc) {
+                damaged++;
+                continue;
+            }
+            frame.clear();
+            scopes.clear();
+            try {
+                decodeFrame(ByteBuffer.wrap(payload, 0, length), scopes, fileName, frame);
+            } catch (IOException | RuntimeException e) {
+                damaged++;
+                continue;
+            }
+            for (Update update : frame) {
+                sink.accept(update.scope(), update.freq(), update.itemId(), update.count());
+            }
+        }
+    }
+
+    private static void decodeFrame(ByteBuffer in, List<String> scopes, String fileName, List<Update> out) throws IOException {
+        while (in.hasRemaining()) {
+            byte tag = in.get();
+            switch (tag) {
+                case TAG_SCOPE -> {
+                    int id = (int) getVarLong(in);
+                    byte[] name = new byte[(int) getVarLong(in)];
+                    in.get(name);
+                    while (scopes.size() <= id) {
+                        scopes.add(null);
+                    }
+                    scopes.set(id, new String(name, StandardCharsets.UTF_8));
+                }
+                case TAG_UPDATE -> {
+                    int scopeId = (int) getVarLong(in);
+                    int freq = (int) getVarLong(in);
+                    int itemId = (int) getVarLong(in);
+                    long count = getVarLong(in);
+                    String scope = scopeId < scopes.size() ? scopes.get(scopeId) : null;
+                    if (scope == null) {
+                        throw new IOException("Undefined scope id " + scopeId + " in " + fileName);
+                    }
+                    out.add(new Update(scope, freq, itemId, count));
+                }
+                case TAG_DROP -> {
+                    int scopeId = (int) getVarLong(in);
+                    int freq = (int) getVarLong(in);
+                    String scope = scopeId < scopes.size() ? scopes.get(scopeId) : null;
+                    if (scope == null) {
+                        throw new IOException("Undefined scope id " + scopeId + " in " + fileName);
+                    }
+                    out.add(Update.dropChannel(scope, freq));
+                }
+                default -> throw new IOException("Unknown WAL entry tag " + tag + " in " + fileName);
+            }
+        }
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.sts15.enderdrives.inventory;
 
 import appeng.api.config.Actionable;
+import appeng.api.networking.IGrid;
+import appeng.api.networking.IGridNode;
+import appeng.api.networking.security.IActionHost;
 import appeng.api.networking.security.IActionSource;
 import appeng.api.stacks.AEItemKey;
 import appeng.api.stacks.AEKey;
@@ -8,11 +11,15 @@ import appeng.api.stacks.AEKeyType;
 import appeng.api.stacks.KeyCounter;
 import appeng.api.storage.cells.CellState;
 import appeng.api.storage.cells.ICellHandler;
+import appeng.api.storage.cells.ISaveProvider;
 import appeng.api.storage.cells.StorageCell;
 import appeng.items.contents.CellConfig;
 import appeng.util.ConfigInventory;
-import com.sts15.enderdrives.db.AEKeyCacheEntry;
+import com.sts15.enderdrives.db.ChannelKey;
+import com.sts15.enderdrives.db.ChannelPartition;
 import com.sts15.enderdrives.db.EnderDBManager;
+import com.sts15.enderdrives.db.ItemSlot;
+import com.sts15.enderdrives.db.SerializedKeyCache;
 import com.sts15.enderdrives.items.EnderDiskItem;
 import net.minecraft.core.HolderLookup;
 import net.minecraft.nbt.CompoundTag;
@@ -26,12 +33,6 @@ import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ForkJoinPool;
-import java.util.stream.Collectors;
-import static com.sts15.enderdrives.db.EnderDBManager.dbMap;
-import static com.sts15.enderdrives.db.EnderDBManager.deltaBuffer;
 
 public class EnderDiskInventory implements StorageCell {
 
@@ -39,12 +40,24 @@ public class EnderDiskInventory implements StorageCell {
     private final ItemStack stack;
     private final int frequency;
     public static final ICellHandler HANDLER = new Handler();
-    private static final ConcurrentMap<String, Object> diskLocks = new ConcurrentHashMap<>();
+    private static final int ITEM_LOCK_STRIPES = 256;
+    private static final Object[] ITEM_LOCKS = new Object[ITEM_LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < ITEM_LOCK_STRIPES; i++) {
+            ITEM_LOCKS[i] = new Object();
+        }
+    }
     private final int typeLimit;
     private final String scopePrefix;
     private final boolean disabled;
-    private static final ForkJoinPool SHARED_PARALLEL_POOL =
-            new ForkJoinPool(Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private final int transferMode;
+    private final Set<AEKey> filter;
+    private final ChannelKey channel;
+    private final int channelHash;
+    private @Nullable ChannelPartition partition;
+    private final @Nullable ISaveProvider host;
+    private volatile @Nullable IGridNode actingNode;
     private static final ThreadLocal<ByteArrayOutputStream> LOCAL_BAOS =
             ThreadLocal.withInitial(() -> new ByteArrayOutputStream(512));
     private static final ThreadLocal<DataOutputStream> LOCAL_DOS =
@@ -52,17 +65,86 @@ public class EnderDiskInventory implements StorageCell {
 
 
     public EnderDiskInventory(ItemStack stack) {
+        this(stack, null);
+    }
+
+    public EnderDiskInventory(ItemStack stack, @Nullable ISaveProvider host) {
         if (!(stack.getItem() instanceof EnderDiskItem item)) throw new IllegalArgumentException("Item is not an EnderDisk!");
         this.stack = stack;
         this.frequency = EnderDiskItem.getFrequency(stack);
         this.typeLimit = item.getTypeLimit();
         this.scopePrefix = EnderDiskItem.getSafeScopePrefix(stack);
         this.disabled = item.isDisabled(stack);
+        // A mounted cell's settings only change by taking it out, which mounts a new inventory.
+        this.transferMode = EnderDiskItem.getTransferMode(stack);
+        this.filter = readFilter(stack);
+        this.channel = new ChannelKey(scopePrefix, frequency);
+        this.channelHash = channel.hashCode();
+        this.host = host;
+        if (!disabled && host != null) {
+            // Changes made through other grids sharing this channel invalidate this grid's view once per tick.
+            // Keyed by this cell, which the drive holds only while it is mounted, so the subscription goes with it.
+            EnderDBManager.subscribe(scopePrefix, frequency, this, EnderDiskInventory::onChannelChanged);
+        }
+    }
+
+    /**
+     * Checks whether EnderDB is still loading. While it is, the cell holds nothing and accepts nothing,
+     * and the host is told once the channel is ready.
+     *
+     * @return true if the cell has to stay offline for now.
+     */
+    private boolean isLoading() {
+        if (EnderDBManager.isReady()) return false;
+        if (host != null) {
+            EnderDBManager.onChannelReady(scopePrefix, frequency, this, () -> onChannelChanged(this));
+        }
+        return true;
+    }
+
+    /**
+     * Tells the host that the channel changed outside of it, or became ready. The save callback lets a drive
+     * or ME chest update the cell state it shows, and the grid's cached stacks are marked as stale;
+     * the drive's storage provider stays mounted.
+     *
+     * @param cell The subscribed cell.
+     */
+    private static void onChannelChanged(EnderDiskInventory cell) {
+        if (cell.host == null) return;
+        cell.host.saveChanges();
+        IGridNode node = cell.gridNode();
+        IGrid grid = node == null ? null : node.getGrid();
+        if (grid != null) {
+            grid.getStorageService().invalidateCache();
+        }
+    }
+
+    /**
+     * Returns a grid node on the grid this cell is mounted in. Drives and ME chests mount cells with a
+     * method reference as save callback rather than with themselves, so for them the grid is only known
+     * from the last machine that inserted or extracted. Should that machine sit on another grid, e.g. behind
+     * a storage bus, invalidating its storage only costs that grid a rebuild.
+     *
+     * @return The node, or null if no machine has used the cell yet.
+     */
+    private @Nullable IGridNode gridNode() {
+        if (host instanceof IActionHost actionHost) {
+            return actionHost.getActionableNode();
+        }
+        return actingNode;
+    }
+
+    private void rememberActingNode(IActionSource source) {
+        if (host instanceof IActionHost) return;
+        source.machine().ifPresent(machine -> {
+            IGridNode node = machine.getActionableNode();
+            if (node != null) actingNode = node;
+        });
     }
 
     @Override
     public CellState getStatus() {
-        if (disabled) return CellState.FULL;
+        if (disabled || isLoading()) return CellState.FULL;
         int typesUsed = EnderDBManager.getTypeCount(scopePrefix, frequency);
         CellState state = calculateCellState(typesUsed, typeLimit);
         return state;
@@ -100,102 +182,92 @@ public class EnderDiskInventory implements StorageCell {
 
     @Override
     public long insert(AEKey what, long amount, Actionable mode, IActionSource source) {
-        if (disabled) return 0;
-        int transferMode = EnderDiskItem.getTransferMode(stack);
-        if (transferMode == 2) {
+        rememberActingNode(source);
+        if (disabled || isLoading() || transferMode == 2) return 0;
+        if (!(what instanceof AEItemKey itemKey) || !passesFilter(itemKey)) {
             return 0;
         }
-
-        if (!(what instanceof AEItemKey itemKey)) {
+        // One cache probe yields both the bytes and the memoized dictionary id.
+        SerializedKeyCache.Entry cached = SerializedKeyCache.entry(itemKey);
+        if (cached == null) {
             return 0;
         }
+        if (mode == Actionable.SIMULATE) {
+            // Read-only: answered from the channel's counters and the cached key, without the channel lock.
+            return canAccept(cached.itemId()) ? amount : 0;
+        }
+        // Only changes of the same item serialize; the type limit is enforced by a compare-and-set in EnderDB.
+        synchronized (itemLock(itemKey)) {
+            return EnderDBManager.insertItem(scopePrefix, frequency, cached.bytes(), amount, typeLimit, this);
+        }
+    }
 
-        if (!passesFilter(itemKey)) {
+    @Override
+    public long extract(AEKey what, long amount, Actionable mode, IActionSource source) {
+        rememberActingNode(source);
+        if (disabled || isLoading() || transferMode == 1) return 0;
+        if (!(what instanceof AEItemKey itemKey)) {
             return 0;
         }
-
-        ItemStack toInsert = itemKey.toStack();
-        byte[] serialized = serializeItemStackToBytes(toInsert);
+        if (mode == Actionable.SIMULATE) {
+            // Read-only: one map lookup with the cached boxed id and one volatile read of the item's counter.
+            Integer itemId = SerializedKeyCache.findItemId(itemKey);
+            ChannelPartition current = itemId == null ? null : partition();
+            ItemSlot slot = current == null ? null : current.slot(itemId);
+            return slot == null ? 0 : Math.min(slot.count(), amount);
+        }
+        byte[] serialized = SerializedKeyCache.get(itemKey);
         if (serialized.length == 0) {
-
             return 0;
         }
-
-        synchronized (getDiskLock()) {
-            com.sts15.enderdrives.db.AEKey key = new com.sts15.enderdrives.db.AEKey(scopePrefix, frequency, serialized);
-            boolean inDb = dbMap.containsKey(key);
-            boolean inBuffer = deltaBuffer.containsKey(key);
-            boolean isNewType = !(inDb || inBuffer);
-
-            if (isNewType) {
-                int committedTypes = EnderDBManager.getTypeCount(scopePrefix, frequency);
-                Set<com.sts15.enderdrives.db.AEKey> simulatedKeys = new HashSet<>(dbMap.keySet());
-                deltaBuffer.keySet().forEach(k -> {
-                    if (k.scope().equals(scopePrefix) && k.freq() == frequency) {
-                        simulatedKeys.add(k);
-                    }
-                });
-
-                simulatedKeys.add(key);
-
-                int simulatedTypeCount = 0;
-                for (com.sts15.enderdrives.db.AEKey k : simulatedKeys) {
-                    if (k.scope().equals(scopePrefix) && k.freq() == frequency) {
-                        simulatedTypeCount++;
-                    }
-                }
-
-                if (simulatedTypeCount > typeLimit) {
-                    return 0;
-                }
-            }
-
-            if (mode == Actionable.MODULATE) {
-                EnderDBManager.saveItem(scopePrefix, frequency, serialized, amount);
-            }
-
-            return amount;
+        // The compare-and-set on the item's counter keeps it above 0; the item lock keeps an insert of the
+        // same item from seeing it stored while this extract empties it.
+        synchronized (itemLock(itemKey)) {
+            return EnderDBManager.extractItem(scopePrefix, frequency, serialized, amount, this);
         }
     }
 
-    @Override
-    public long extract(AEKey what, long amount, Actionable mode, IActionSource source) {
-        if (disabled) return 0;
-        synchronized (getDiskLock()) {
-            int transferMode = EnderDiskItem.getTransferMode(stack);
-            if (transferMode == 1) {
-                return 0;
-            }
-            if (!(what instanceof AEItemKey itemKey)) {
-                return 0;
-            }
-            ItemStack toExtract = itemKey.toStack();
-            byte[] serialized = serializeItemStackToBytes(toExtract);
-            if (serialized.length == 0) {
-                return 0;
-            }
-            long current = EnderDBManager.getItemCount(scopePrefix, frequency, serialized);
-            long toExtractCount = Math.min(current, amount);
-            if (toExtractCount > 0 && mode == Actionable.MODULATE) {
-                EnderDBManager.saveItem(scopePrefix, frequency, serialized, -toExtractCount);
-                //EnderDBManager.flushDeltaBuffer();  <-- This makes it an atomic extract, except costly ops/sec
-            }
-            return toExtractCount;
+    /**
+     * Checks the type limit for an item: a stored item is always accepted, a new one only while a type is free.
+     *
+     * @param itemId The item's dictionary id, or null if it was never stored.
+     * @return true if the item can be inserted.
+     */
+    private boolean canAccept(@Nullable Integer itemId) {
+        ChannelPartition current = partition();
+        if (current == null) return typeLimit > 0;
+        if (itemId != null && current.isKnown(itemId)) return true;
+        return current.typeCount() < typeLimit;
+    }
+
+    /**
+     * Returns the channel's partition, looking it up again only after it was dropped or while it does not exist.
+     *
+     * @return The partition, or null if the channel holds nothing.
+     */
+    private @Nullable ChannelPartition partition() {
+        ChannelPartition current = partition;
+        if (current == null || current.isDropped()) {
+            current = EnderDBManager.getPartition(channel);
+            partition = current;
         }
+        return current;
     }
 
     private boolean passesFilter(AEKey key) {
+        return filter.isEmpty() || filter.contains(key);
+    }
+
+    private static Set<AEKey> readFilter(ItemStack stack) {
         ConfigInventory configInv = CellConfig.create(Set.of(AEKeyType.items()), stack);
+        Set<AEKey> keys = new HashSet<>();
         for (int i = 0; i < configInv.size(); i++) {
             AEKey slotKey = configInv.getKey(i);
-            if (slotKey == null) continue;
-            if (slotKey.equals(key)) {
-                return true;
+            if (slotKey != null) {
+                keys.add(slotKey);
             }
         }
-        boolean hasAnyFilter = !configInv.keySet().isEmpty();
-        boolean result = !hasAnyFilter;
-        return result;
+        return keys;
     }
 
     @Override
@@ -205,52 +277,23 @@ public class EnderDiskInventory implements StorageCell {
 
     @Override
     public Component getDescription() {
-        Component desc = Component.literal("EnderDisk @ Freq " + frequency);
+        Component desc = Component.literal("EnderDisk @ Freq " + frequency + (EnderDBManager.isReady() ? "" : " (loading)"));
         return desc;
     }
 
     @Override
     public void getAvailableStacks(KeyCounter out) {
-        if (disabled) return;
-        synchronized (getDiskLock()) {
-            List<AEKeyCacheEntry> entries = EnderDBManager.queryItemsByFrequency(scopePrefix, frequency);
-            if (entries.isEmpty()) return;
-
-            try {
-                List<KeyCounter> partials = SHARED_PARALLEL_POOL.submit(() ->
-                        entries.parallelStream()
-                                .collect(Collectors.groupingByConcurrent(
-                                        entry -> Thread.currentThread().getId(),
-                                        Collectors.collectingAndThen(Collectors.toList(), group -> {
-                                            KeyCounter kc = new KeyCounter();
-                                            for (AEKeyCacheEntry entry : group) {
-                                                kc.add(entry.aeKey(), entry.count());
-                                            }
-                                            return kc;
-                                        })
-                                ))
-                                .values()
-                                .stream()
-                                .toList()
-                ).get();
-
-                for (KeyCounter partial : partials) {
-                    out.addAll(partial);
-                }
-
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-
-        }
+        if (disabled || isLoading()) return;
+        // The channel's stack view is immutable once published, so no lock is needed.
+        EnderDBManager.addAvailableStacks(scopePrefix, frequency, out);
     }
 
     @Override
     public boolean isPreferredStorageFor(AEKey what, IActionSource source) {
-        if (!(what instanceof AEItemKey itemKey)) {
+        if (!EnderDBManager.isReady() || !(what instanceof AEItemKey itemKey)) {
             return false;
         }
-        byte[] serialized = serializeItemStackToBytes(itemKey.toStack());
+        byte[] serialized = SerializedKeyCache.get(itemKey);
         if (serialized.length == 0) {
             return false;
         }
@@ -305,12 +348,22 @@ public class EnderDiskInventory implements StorageCell {
             return is != null && is.getItem() instanceof EnderDiskItem;
         }
         @Override
-        public @Nullable StorageCell getCellInventory(ItemStack is, @Nullable appeng.api.storage.cells.ISaveProvider host) {
-            return isCell(is) ? new EnderDiskInventory(is) : null;
+        public @Nullable StorageCell getCellInventory(ItemStack is, @Nullable ISaveProvider host) {
+            return isCell(is) ? new EnderDiskInventory(is, host) : null;
         }
     }
 
-    private Object getDiskLock() {
-        return diskLocks.computeIfAbsent(scopePrefix + ":" + frequency, k -> new Object());
+    /**
+     * Returns the lock guarding changes of one item on this cell's channel. Locks are striped by channel and
+     * item key, so buses moving different items through a shared channel rarely contend, and the lookup
+     * only mixes two cached hash codes.
+     *
+     * @param itemKey The item.
+     * @return The stripe's lock.
+     */
+    private Object itemLock(AEItemKey itemKey) {
+        int hash = channelHash * 31 + itemKey.hashCode();
+        hash ^= hash >>> 16;
+        return ITEM_LOCKS[hash & (ITEM_LOCK_STRIPES - 1)];
     }
 }
\ No newline at end of file
@@ -67,8 +67,8 @@ public class TapeDiskInventory implements StorageCell {
 
         ItemStack stackToInsert = itemKey.toStack((int) amount);
         if (!hasMeaningfulNBT(stackToInsert)) return 0;
-        byte[] data = TapeDiskItem.serializeItemStackToBytes(stackToInsert);
-        if (data == null || data.length == 0) return 0;
+        byte[] data = SerializedKeyCache.get(itemKey);
+        if (data.length == 0) return 0;
 
         synchronized (getDiskLock(tapeId)) {
             var cache = getCacheSafe(tapeId);
@@ -119,8 +119,8 @@ public class TapeDiskInventory implements StorageCell {
             }
         }
         if (matchKey == null) {
-            byte[] data = TapeDiskItem.serializeItemStackToBytes(itemKey.toStack((int) amount));
-            if (data == null || data.length == 0) return 0;
+            byte[] data = SerializedKeyCache.get(itemKey);
+            if (data.length == 0) return 0;
             matchKey = new TapeKey(data);
         }
 